@@ -1,26 +1,43 @@
 package com.evolveum.polygon.connector.canvas;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import org.apache.http.Header;
 import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicHeader;
 import org.apache.http.util.EntityUtils;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 
 /**
  * "Connection" class, but Client is harder to confuse with "Connector".
@@ -31,24 +48,59 @@ public class CanvasClient {
     private static final Log LOG = Log.getLog(CanvasClient.class);
 
     private static final String API_BASE = "/api/v1";
+    private static final String GRAPHQL_PATH = "/api/graphql";
 
     private final String apiBaseUrl;
 
+    private final String graphqlUrl;
+
+    private final CanvasHttpClients.SharedClient sharedClient;
+
     private final CloseableHttpClient httpClient;
 
+    private final RequestConfig downloadRequestConfig;
+
+    private boolean closed;
+
+    private final int pagePrefetchDepth;
+
+    private final boolean streamingPageParsing;
+
+    private final int pageFanOutConcurrency;
+
+    private final CanvasRateLimiter rateLimiter; // null if disabled
+
+    private final RetryPolicy retryPolicy;
+
+    private final CanvasMetrics metrics; // null if disabled
+
+    /** ConnId operation currently executed by the connector, used for metrics. */
+    private volatile String operation;
+
     public CanvasClient(CanvasConfiguration configuration) {
         apiBaseUrl = configuration.getBaseUrl() + API_BASE;
+        graphqlUrl = configuration.getBaseUrl() + GRAPHQL_PATH;
+        // Shared pooled client, see CanvasHttpClients for details.
+        sharedClient = CanvasHttpClients.acquire(configuration);
+        httpClient = sharedClient.client();
+        downloadRequestConfig = RequestConfig.copy(CanvasHttpClients.requestConfig(configuration))
+                .setRedirectsEnabled(false)
+                .build();
+        pagePrefetchDepth = configuration.getPagePrefetchDepth();
+        streamingPageParsing = configuration.isStreamingPageParsing();
+        pageFanOutConcurrency = configuration.getPageFanOutConcurrency();
+        rateLimiter = CanvasRateLimiter.get(configuration);
+        retryPolicy = new RetryPolicy(configuration.getMaxRetries(),
+                configuration.getRetryInitialDelayMillis(), configuration.getRetryMaxDelayMillis());
+        metrics = CanvasMetrics.get(configuration);
+    }
 
-        HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
-
-        StringBuilder token = new StringBuilder();
-        if (configuration.getAuthToken() != null) {
-            configuration.getAuthToken().access(chars -> token.append(chars));
+    /** Sets the ConnId operation name, following requests are counted for it in the metrics (if enabled). */
+    public void startOperation(String operation) {
+        this.operation = operation;
+        if (metrics != null) {
+            metrics.recordOperation(operation);
         }
-        httpClientBuilder.setDefaultHeaders(List.of(
-                new BasicHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token)));
-
-        httpClient = httpClientBuilder.build();
     }
 
     /**
@@ -61,19 +113,114 @@ public class CanvasClient {
         return callRequest(new HttpGet(apiBaseUrl + apiRequest), handlersOrDefault(responseHandlers));
     }
 
+    /**
+     * GET request for JSON array response, elements of successful response are parsed from the response stream
+     * one by one and passed to the element handler; only the current element is kept in memory.
+     * Handler can return false to stop the processing, the rest of the response is not read then.
+     * Returned response does not have the body for successful response, but contains the paging info.
+     * <p>
+     * Note that the response is open while the elements are processed, so the handler should not be too slow
+     * and must not make other requests: the response holds its pooled connection, so nested requests could wait
+     * for a free connection. Exceptions thrown by the handler are propagated unchanged.
+     */
+    public CanvasResponse getEach(String apiRequest,
+            Predicate<JSONObject> elementHandler, ResponseHandler... responseHandlers) {
+        return callRequest(new HttpGet(apiBaseUrl + apiRequest), true, elementHandler, handlersOrDefault(responseHandlers));
+    }
+
     public CanvasResponse putJson(String apiRequest, String jsonBody, ResponseHandler... responseHandlers) {
-        return jsonRequest(new HttpPut(apiBaseUrl + apiRequest), jsonBody, responseHandlers);
+        return jsonRequest(new HttpPut(apiBaseUrl + apiRequest), jsonBody, true, responseHandlers);
     }
 
     public CanvasResponse postJson(String apiRequest, String jsonBody, ResponseHandler... responseHandlers) {
-        return jsonRequest(new HttpPost(apiBaseUrl + apiRequest), jsonBody, responseHandlers);
+        return jsonRequest(new HttpPost(apiBaseUrl + apiRequest), jsonBody, false, responseHandlers);
+    }
+
+    /**
+     * Like {@link #postJson}, but the request is retried also on server/I/O errors.
+     * Use only for POST requests that are safe to repeat, e.g. enrollment creation, which reuses
+     * the existing enrollment for the same user, course and role.
+     */
+    public CanvasResponse postJsonRetrySafe(String apiRequest, String jsonBody, ResponseHandler... responseHandlers) {
+        return jsonRequest(new HttpPost(apiBaseUrl + apiRequest), jsonBody, true, responseHandlers);
+    }
+
+    /**
+     * Posts GraphQL query to {@code /api/graphql}, the response is returned with status 200 even for query errors,
+     * so check the {@code errors} in the response body.
+     * Only read queries are expected, so the request is retried like GET.
+     */
+    public CanvasResponse postGraphql(String query, ResponseHandler... responseHandlers) {
+        return jsonRequest(new HttpPost(graphqlUrl), new JSONObject().put("query", query).toString(),
+                true, responseHandlers);
+    }
+
+    /**
+     * Returns pager for paginated GET request, starting with the first page of default size.
+     * Request can contain query parameters, page parameters are appended.
+     */
+    public CanvasPager pages(String apiRequest) {
+        return pages(apiRequest, "1", "100");
+    }
+
+    /** Returns pager for paginated GET request starting with the specified page. */
+    public CanvasPager pages(String apiRequest, String page, String pageSize) {
+        return pages(apiRequest, page, pageSize, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns pager for paginated GET request starting with the specified page, which does not request
+     * more than page budget pages ahead of the consumer, see {@link CanvasPager}.
+     */
+    public CanvasPager pages(String apiRequest, String page, String pageSize, int pageBudget) {
+        return new CanvasPager(this, apiRequest, page, pageSize, pageBudget,
+                pagePrefetchDepth, streamingPageParsing, pageFanOutConcurrency);
+    }
+
+    /**
+     * Downloads a file from the absolute URL (e.g. report attachment) to the target file.
+     * Redirects are followed manually, the Canvas token is not sent outside of the Canvas host
+     * (files are typically served from a storage with signed URLs, which rejects other authorization).
+     */
+    public void download(String url, Path target) {
+        String canvasHost = URI.create(apiBaseUrl).getHost();
+        String currentUrl = url;
+        for (int redirect = 0; redirect <= MAX_DOWNLOAD_REDIRECTS; redirect++) {
+            HttpGet request = new HttpGet(currentUrl);
+            request.setConfig(downloadRequestConfig);
+            boolean canvasRequest = canvasHost.equalsIgnoreCase(request.getURI().getHost());
+            CloseableHttpClient client = canvasRequest ? httpClient : CanvasHttpClients.getUnauthenticated();
+            LOG.ok("download request: {0}", canvasRequest ? currentUrl : request.getURI().getHost() + "/...");
+            try (CloseableHttpResponse response = client.execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                Header location = response.getFirstHeader(HttpHeaders.LOCATION);
+                if (status >= 300 && status < 400 && location != null) {
+                    EntityUtils.consume(response.getEntity());
+                    currentUrl = request.getURI().resolve(location.getValue()).toString();
+                    continue;
+                }
+                if (status < 200 || status >= 300) {
+                    throw new ConnectorIOException("Download failed with status " + status + " for " + url);
+                }
+                try (InputStream content = response.getEntity().getContent()) {
+                    long bytes = Files.copy(content, target, StandardCopyOption.REPLACE_EXISTING);
+                    LOG.ok("downloaded {0} bytes to {1}", bytes, target);
+                }
+                return;
+            } catch (IOException e) {
+                throw new ConnectorIOException("Download failed for " + url + ": " + e.getMessage(), e);
+            }
+        }
+        throw new ConnectorIOException("Too many redirects when downloading " + url);
     }
 
-    private CanvasResponse jsonRequest(
-            HttpEntityEnclosingRequestBase request, String jsonBody, ResponseHandler... responseHandlers) {
+    private static final int MAX_DOWNLOAD_REDIRECTS = 5;
+
+    private CanvasResponse jsonRequest(HttpEntityEnclosingRequestBase request,
+            String jsonBody, boolean retrySafe, ResponseHandler... responseHandlers) {
         LOG.ok("request body: {0}", jsonBody);
         request.setEntity(new StringEntity(jsonBody, ContentType.APPLICATION_JSON));
-        return callRequest(request, handlersOrDefault(responseHandlers));
+        return callRequest(request, retrySafe, null, handlersOrDefault(responseHandlers));
     }
 
     public CanvasResponse delete(String apiRequest, ResponseHandler... responseHandlers) {
@@ -101,20 +248,83 @@ public class CanvasClient {
     private static final Pattern PER_PAGE_PATTERN = Pattern.compile(".*per_page=(\\d+).*");
 
     private CanvasResponse callRequest(HttpRequestBase request, ResponseHandler[] responseHandlers) {
+        return callRequest(request, isIdempotent(request), null, responseHandlers);
+    }
+
+    /**
+     * Executes the request, retrying it if the response (or the failure) is transient, then runs the handlers.
+     * Throttled requests are not processed by Canvas, so these are retried for any method.
+     * Server errors and I/O errors are retried only when the request is safe to repeat.
+     * Failures while streaming the elements to the element handler (if provided) are not retried,
+     * as some elements were likely processed already.
+     */
+    private CanvasResponse callRequest(HttpRequestBase request, boolean retrySafe,
+            Predicate<JSONObject> elementHandler, ResponseHandler[] responseHandlers) {
+        for (int attempt = 0; ; attempt++) {
+            CanvasResponse canvasResponse;
+            try {
+                canvasResponse = executeRequest(request, elementHandler);
+            } catch (IOException e) {
+                if (!retrySafe || attempt >= retryPolicy.maxRetries()) {
+                    throw new ConnectorIOException(e.getMessage(), e);
+                }
+                long delayMillis = retryPolicy.delayMillis(attempt, null);
+                LOG.warn("Request {0} {1} failed with {2}, retry {3} in {4} ms",
+                        request.getMethod(), request.getURI(), e.getMessage(), attempt + 1, delayMillis);
+                sleep(delayMillis);
+                continue;
+            }
+
+            if (attempt < retryPolicy.maxRetries() && isRetryable(canvasResponse, retrySafe)) {
+                long delayMillis = retryPolicy.delayMillis(attempt, canvasResponse.retryAfterSeconds);
+                LOG.warn("Request {0} {1} returned status {2}, retry {3} in {4} ms",
+                        request.getMethod(), request.getURI(), canvasResponse.statusCode, attempt + 1, delayMillis);
+                sleep(delayMillis);
+                continue;
+            }
+
+            for (ResponseHandler responseHandler : responseHandlers) {
+                responseHandler.handle(canvasResponse);
+            }
+            return canvasResponse;
+        }
+    }
+
+    /**
+     * Throws IOException only when the response was not processed (failure of the request or reading of the body),
+     * failure during the element streaming is thrown as {@link ConnectorIOException}.
+     */
+    private CanvasResponse executeRequest(HttpRequestBase request, Predicate<JSONObject> elementHandler)
+            throws IOException {
         LOG.ok("request {0}: {1}", request.getMethod(), request.getURI());
 
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+        Double rateLimitRemaining = null;
+        Double requestCost = null;
+        long startNanos = System.nanoTime();
+        int status = CanvasMetrics.STATUS_IO_ERROR;
+        CountingInputStream countingStream = null;
         try (CloseableHttpResponse response = httpClient.execute(request)) {
             LOG.ok("response: {0}", response);
+            status = response.getStatusLine().getStatusCode();
+            if (metrics != null && response.getEntity() != null) {
+                countingStream = new CountingInputStream(response.getEntity().getContent());
+                InputStream content = countingStream;
+                response.setEntity(new HttpEntityWrapper(response.getEntity()) {
+                    @Override
+                    public InputStream getContent() {
+                        return content;
+                    }
+                });
+            }
+            rateLimitRemaining = headerAsDouble(response, CanvasRateLimiter.HEADER_RATE_LIMIT_REMAINING);
+            requestCost = headerAsDouble(response, CanvasRateLimiter.HEADER_REQUEST_COST);
 
             CanvasResponse canvasResponse = new CanvasResponse(request);
             canvasResponse.statusCode = response.getStatusLine().getStatusCode();
-            String body = EntityUtils.toString(response.getEntity());
-            LOG.ok("response body: {0}", body);
-            canvasResponse.body = body;
-
-            for (ResponseHandler responseHandler : responseHandlers) {
-                responseHandler.handle(canvasResponse);
-            }
+            canvasResponse.retryAfterSeconds = retryAfterSeconds(response);
 
             // Storing info about next page for paginated results
             Arrays.stream(response.getHeaders("Link"))
@@ -132,12 +342,143 @@ public class CanvasClient {
                             } else {
                                 LOG.warn("Canvas pagination issue: Found 'next' page link, but did not recognize the 'page' value. Original link: {0}", headerElementString);
                             }
+                        } else if (relParameter != null && Objects.equals(relParameter.getValue(), "last")) {
+                            // Provided only for numeric pagination, not for bookmarks.
+                            canvasResponse.lastPage = matchAndGet(e.toString(), PAGE_PATTERN);
                         }
                     });
 
+            if (elementHandler != null && canvasResponse.isSuccess()) {
+                streamElements(response, elementHandler);
+            } else {
+                String body = EntityUtils.toString(response.getEntity());
+                LOG.ok("response body: {0}", body);
+                canvasResponse.body = body;
+            }
             return canvasResponse;
-        } catch (IOException e) {
-            throw new ConnectorIOException(e.getMessage(), e);
+        } finally {
+            if (rateLimiter != null) {
+                rateLimiter.release(rateLimitRemaining, requestCost);
+            }
+            if (metrics != null) {
+                metrics.recordRequest(operation, request.getMethod(), request.getURI(), status,
+                        countingStream != null ? countingStream.count : 0, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /** Counts bytes of the response body for metrics. */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private void streamElements(HttpResponse response, Predicate<JSONObject> elementHandler) {
+        try (Reader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)) {
+            boolean completed = CanvasResponse.forEachElement(new JSONTokener(reader), json -> {
+                try {
+                    return elementHandler.test(json);
+                } catch (RuntimeException e) {
+                    throw new ElementHandlerException(e);
+                }
+            });
+            LOG.ok("response body streamed, completed: {0}", completed);
+        } catch (ElementHandlerException e) {
+            throw e.handlerException;
+        } catch (IOException | JSONException e) {
+            throw new ConnectorIOException("Reading of streamed response failed: " + e.getMessage(), e);
+        }
+    }
+
+    /** Carries the exception of the element handler through the parsing, so it's not reported as a parsing error. */
+    private static class ElementHandlerException extends RuntimeException {
+
+        private final RuntimeException handlerException;
+
+        private ElementHandlerException(RuntimeException handlerException) {
+            super(handlerException);
+            this.handlerException = handlerException;
+        }
+    }
+
+    private boolean isIdempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        return method.equals(HttpGet.METHOD_NAME)
+                || method.equals(HttpPut.METHOD_NAME)
+                || method.equals(HttpDelete.METHOD_NAME);
+    }
+
+    private boolean isRetryable(CanvasResponse response, boolean retrySafe) {
+        if (response.isThrottled()) {
+            return true;
+        }
+        return retrySafe && RETRYABLE_SERVER_ERRORS.contains(response.statusCode);
+    }
+
+    private static final Set<Integer> RETRYABLE_SERVER_ERRORS = Set.of(502, 503, 504);
+
+    /** Supports only delay in seconds, which is what Canvas and proxies in front of it use. */
+    private Long retryAfterSeconds(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null) {
+            return null;
+        }
+        try {
+            return Long.valueOf(header.getValue().trim());
+        } catch (NumberFormatException e) {
+            LOG.ok("Ignoring Retry-After header value: {0}", header.getValue());
+            return null;
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorIOException("Interrupted while waiting for request retry", e);
+        }
+    }
+
+    private Double headerAsDouble(HttpResponse response, String headerName) {
+        Header header = response.getFirstHeader(headerName);
+        if (header == null) {
+            return null;
+        }
+        try {
+            return Double.valueOf(header.getValue());
+        } catch (NumberFormatException e) {
+            LOG.warn("Unexpected value of header {0}: {1}", headerName, header.getValue());
+            return null;
         }
     }
 
@@ -158,18 +499,23 @@ public class CanvasClient {
         return matcher.matches() ? matcher.group(1) : null;
     }
 
-    public void close() {
-        try {
-            this.httpClient.close();
-        } catch (IOException e) {
-            LOG.error("Error closing HTTP client: {0}", e.getMessage(), e);
+    /**
+     * HTTP client is shared by connector instances, so it is only released here,
+     * see {@link CanvasHttpClients#release} for details.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
         }
+        closed = true;
+        LOG.ok("Releasing Canvas client for {0}", apiBaseUrl);
+        CanvasHttpClients.release(sharedClient);
     }
 
     /**
      * Response handler contract and no-op implementation.
      * NOOP is important when you want no default handling, otherwise
-     * {@link CanvasClient#callRequest(HttpRequestBase, ResponseHandler...)} throws if status is not 2xx.
+     * {@link CanvasClient#callRequest(HttpRequestBase, ResponseHandler[])} throws if status is not 2xx.
      */
     public interface ResponseHandler {
         ResponseHandler NOOP = response -> {
@@ -195,4 +541,21 @@ public class CanvasClient {
             }
         }
     }
+
+    /**
+     * Exponential backoff with jitter, Retry-After from the server is used instead if provided.
+     * Delay for retry N (0-based) is random between half and full of {@code initialDelay * 2^N}, capped by max delay.
+     * Retry-After is capped by max delay as well, so a misbehaving proxy can't park the operation for hours.
+     */
+    record RetryPolicy(int maxRetries, long initialDelayMillis, long maxDelayMillis) {
+
+        long delayMillis(int attempt, Long retryAfterSeconds) {
+            if (retryAfterSeconds != null) {
+                return Math.max(0, Math.min(maxDelayMillis, TimeUnit.SECONDS.toMillis(retryAfterSeconds)));
+            }
+            long exponentialDelay = Math.min(maxDelayMillis, initialDelayMillis << Math.min(attempt, 20));
+            long half = exponentialDelay / 2;
+            return half + ThreadLocalRandom.current().nextLong(half + 1);
+        }
+    }
 }
@@ -27,6 +27,34 @@ public class CanvasConfiguration extends AbstractConfiguration {
     private int studentRoleId;
     private int teacherRoleId;
     private boolean sendEnrollmentNotification;
+    private int maxConnectionsPerRoute = 10;
+    private int connectionKeepAliveSeconds = 60;
+    private int connectionIdleTimeoutSeconds = 30;
+    private int connectTimeoutSeconds = 30;
+    private int socketTimeoutSeconds = 300;
+    private int connectionRequestTimeoutSeconds = 60;
+    private boolean bulkLoginListing;
+    private boolean enrollmentIndexListing;
+    private boolean enrichmentAttributesNotReturnedByDefault;
+    private int enrichmentParallelism = 1;
+    private int pagePrefetchDepth;
+    private boolean streamingPageParsing;
+    private int pageFanOutConcurrency = 1;
+    private boolean metricsEnabled;
+    private int targetedEnrollmentLookupMaxUsers;
+    private int enrollmentWriteParallelism = 1;
+    private int courseCacheTtlSeconds;
+    private int courseCacheMaxSize = 10000;
+    private int enrollmentCacheTtlSeconds;
+    private int createdUserCacheTtlSeconds;
+    private boolean reportListing;
+    private boolean graphqlEnrollments;
+    private long reportPollIntervalMillis = 5000;
+    private int reportTimeoutSeconds = 3600;
+    private int rateLimitMinRemaining;
+    private int maxRetries;
+    private int retryInitialDelayMillis = 1000;
+    private int retryMaxDelayMillis = 30000;
 
     @ConfigurationProperty(
             required = true,
@@ -115,6 +143,480 @@ public class CanvasConfiguration extends AbstractConfiguration {
         this.sendEnrollmentNotification = sendEnrollmentNotification;
     }
 
+    /**
+     * Maximum number of pooled HTTP connections to Canvas.
+     * The pool is shared by all connector instances with the same base URL and token in the JVM,
+     * so this is the limit for all their threads together, not for each connector instance.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.maxConnectionsPerRoute",
+            helpMessageKey = "canvas.config.maxConnectionsPerRoute.help",
+            order = 100)
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    /**
+     * Maximum time a pooled connection is kept alive.
+     * Shorter Keep-Alive timeout sent by the server is honored.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.connectionKeepAliveSeconds",
+            helpMessageKey = "canvas.config.connectionKeepAliveSeconds.help",
+            order = 110)
+    public int getConnectionKeepAliveSeconds() {
+        return connectionKeepAliveSeconds;
+    }
+
+    public void setConnectionKeepAliveSeconds(int connectionKeepAliveSeconds) {
+        this.connectionKeepAliveSeconds = connectionKeepAliveSeconds;
+    }
+
+    /** Pooled connections idle for longer than this are closed in the background. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.connectionIdleTimeoutSeconds",
+            helpMessageKey = "canvas.config.connectionIdleTimeoutSeconds.help",
+            order = 120)
+    public int getConnectionIdleTimeoutSeconds() {
+        return connectionIdleTimeoutSeconds;
+    }
+
+    public void setConnectionIdleTimeoutSeconds(int connectionIdleTimeoutSeconds) {
+        this.connectionIdleTimeoutSeconds = connectionIdleTimeoutSeconds;
+    }
+
+    /** Timeout for establishing the connection to Canvas. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.connectTimeoutSeconds",
+            helpMessageKey = "canvas.config.connectTimeoutSeconds.help",
+            order = 122)
+    public int getConnectTimeoutSeconds() {
+        return connectTimeoutSeconds;
+    }
+
+    public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = connectTimeoutSeconds;
+    }
+
+    /** Maximum time of inactivity while waiting for the response data. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.socketTimeoutSeconds",
+            helpMessageKey = "canvas.config.socketTimeoutSeconds.help",
+            order = 124)
+    public int getSocketTimeoutSeconds() {
+        return socketTimeoutSeconds;
+    }
+
+    public void setSocketTimeoutSeconds(int socketTimeoutSeconds) {
+        this.socketTimeoutSeconds = socketTimeoutSeconds;
+    }
+
+    /**
+     * Maximum time to wait for a free connection from the shared pool (see {@link #getMaxConnectionsPerRoute()}),
+     * the request fails afterwards.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.connectionRequestTimeoutSeconds",
+            helpMessageKey = "canvas.config.connectionRequestTimeoutSeconds.help",
+            order = 126)
+    public int getConnectionRequestTimeoutSeconds() {
+        return connectionRequestTimeoutSeconds;
+    }
+
+    public void setConnectionRequestTimeoutSeconds(int connectionRequestTimeoutSeconds) {
+        this.connectionRequestTimeoutSeconds = connectionRequestTimeoutSeconds;
+    }
+
+    /**
+     * If true, listing of all users reads logins of the whole account up front
+     * (using {@code GET /accounts/:account_id/logins}) instead of reading logins for each user.
+     * Users not found in the bulk result are still read one by one.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.bulkLoginListing",
+            helpMessageKey = "canvas.config.bulkLoginListing.help",
+            order = 200)
+    public boolean isBulkLoginListing() {
+        return bulkLoginListing;
+    }
+
+    public void setBulkLoginListing(boolean bulkLoginListing) {
+        this.bulkLoginListing = bulkLoginListing;
+    }
+
+    /**
+     * If true, listing of all users first reads current enrollments of all account courses
+     * and builds user -> courses index from them, instead of reading enrollments for each user.
+     * This is beneficial when there are many more users than courses.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.enrollmentIndexListing",
+            helpMessageKey = "canvas.config.enrollmentIndexListing.help",
+            order = 210)
+    public boolean isEnrollmentIndexListing() {
+        return enrollmentIndexListing;
+    }
+
+    public void setEnrollmentIndexListing(boolean enrollmentIndexListing) {
+        this.enrollmentIndexListing = enrollmentIndexListing;
+    }
+
+    /**
+     * If true, attributes requiring additional REST calls per object (enrollment IDs on users and courses,
+     * enabled status and authentication provider ID) are marked as not returned by default in the schema.
+     * These are then returned only when explicitly requested with attributes to get.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.enrichmentAttributesNotReturnedByDefault",
+            helpMessageKey = "canvas.config.enrichmentAttributesNotReturnedByDefault.help",
+            order = 220)
+    public boolean isEnrichmentAttributesNotReturnedByDefault() {
+        return enrichmentAttributesNotReturnedByDefault;
+    }
+
+    public void setEnrichmentAttributesNotReturnedByDefault(boolean enrichmentAttributesNotReturnedByDefault) {
+        this.enrichmentAttributesNotReturnedByDefault = enrichmentAttributesNotReturnedByDefault;
+    }
+
+    /**
+     * Number of objects of a listed page that are converted concurrently, including their additional
+     * REST calls (enrollments, login info). Objects are still returned in the original order.
+     * Value 1 means sequential processing, values higher than {@link #getMaxConnectionsPerRoute()}
+     * will wait for the connections.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.enrichmentParallelism",
+            helpMessageKey = "canvas.config.enrichmentParallelism.help",
+            order = 230)
+    public int getEnrichmentParallelism() {
+        return enrichmentParallelism;
+    }
+
+    public void setEnrichmentParallelism(int enrichmentParallelism) {
+        this.enrichmentParallelism = enrichmentParallelism;
+    }
+
+    /**
+     * Number of pages requested ahead of the page being processed for paginated listings.
+     * Value 0 means the next page is requested only after the current one is processed.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.pagePrefetchDepth",
+            helpMessageKey = "canvas.config.pagePrefetchDepth.help",
+            order = 240)
+    public int getPagePrefetchDepth() {
+        return pagePrefetchDepth;
+    }
+
+    public void setPagePrefetchDepth(int pagePrefetchDepth) {
+        this.pagePrefetchDepth = pagePrefetchDepth;
+    }
+
+    /**
+     * How many pages of a listing with numeric pagination (with {@code rel=last} link) are requested concurrently.
+     * Value 1 means the pages are requested one after another. Pages are still processed in order.
+     * Canvas uses numeric pagination e.g. for courses and enrollments, users are paginated with bookmarks.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.pageFanOutConcurrency",
+            helpMessageKey = "canvas.config.pageFanOutConcurrency.help",
+            order = 245)
+    public int getPageFanOutConcurrency() {
+        return pageFanOutConcurrency;
+    }
+
+    public void setPageFanOutConcurrency(int pageFanOutConcurrency) {
+        this.pageFanOutConcurrency = pageFanOutConcurrency;
+    }
+
+    /**
+     * If true, elements of listed pages are parsed directly from the response stream and processed one by one,
+     * instead of reading the whole response first. This keeps the memory usage flat for big pages,
+     * but the response is open while the elements are processed.
+     * Not used for pages fetched ahead by prefetch, see {@link #getPagePrefetchDepth()}, and for listings
+     * where the conversion of the objects makes REST calls (e.g. enrollments or logins read for each object).
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.streamingPageParsing",
+            helpMessageKey = "canvas.config.streamingPageParsing.help",
+            order = 250)
+    public boolean isStreamingPageParsing() {
+        return streamingPageParsing;
+    }
+
+    public void setStreamingPageParsing(boolean streamingPageParsing) {
+        this.streamingPageParsing = streamingPageParsing;
+    }
+
+    /**
+     * If true, listing of all users or courses (without paging) reads the Canvas provisioning report
+     * instead of the paginated REST listing, see {@link CanvasProvisioningReport}.
+     * This replaces many REST calls with a report run, which pays off for big accounts,
+     * but some attributes are not in the report (created_at, course uuid and visibility flags).
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.reportListing",
+            helpMessageKey = "canvas.config.reportListing.help",
+            order = 260)
+    public boolean isReportListing() {
+        return reportListing;
+    }
+
+    public void setReportListing(boolean reportListing) {
+        this.reportListing = reportListing;
+    }
+
+    /** How often the status of the running provisioning report is checked. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.reportPollIntervalMillis",
+            helpMessageKey = "canvas.config.reportPollIntervalMillis.help",
+            order = 270)
+    public long getReportPollIntervalMillis() {
+        return reportPollIntervalMillis;
+    }
+
+    public void setReportPollIntervalMillis(long reportPollIntervalMillis) {
+        this.reportPollIntervalMillis = reportPollIntervalMillis;
+    }
+
+    /** Maximum time to wait for the provisioning report to complete. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.reportTimeoutSeconds",
+            helpMessageKey = "canvas.config.reportTimeoutSeconds.help",
+            order = 280)
+    public int getReportTimeoutSeconds() {
+        return reportTimeoutSeconds;
+    }
+
+    public void setReportTimeoutSeconds(int reportTimeoutSeconds) {
+        this.reportTimeoutSeconds = reportTimeoutSeconds;
+    }
+
+    /**
+     * If true, enrollments of listed users (or a user read by ID) are fetched with a single GraphQL query
+     * for the whole page, instead of a REST call per user, see {@link CanvasGraphqlReader}.
+     * Not used when the enrollments are available from {@link #isEnrollmentIndexListing()}.
+     * Like with REST, only courses of the root account {@link #getAccountId()} are used, GraphQL does not provide
+     * the root account, so each course not seen before is checked with a course detail request.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.graphqlEnrollments",
+            helpMessageKey = "canvas.config.graphqlEnrollments.help",
+            order = 290)
+    public boolean isGraphqlEnrollments() {
+        return graphqlEnrollments;
+    }
+
+    public void setGraphqlEnrollments(boolean graphqlEnrollments) {
+        this.graphqlEnrollments = graphqlEnrollments;
+    }
+
+    /**
+     * If true, REST calls are counted and timed per endpoint and ConnId operation,
+     * see {@link CanvasMetrics} for details about the published JMX MBean.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.metricsEnabled",
+            helpMessageKey = "canvas.config.metricsEnabled.help",
+            order = 300)
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * When a course update adds or removes at most this number of users (added and removed together),
+     * only their enrollments in the course are looked up (a call per user) instead of listing all course enrollments.
+     * Value 0 means that all course enrollments are always listed.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.targetedEnrollmentLookupMaxUsers",
+            helpMessageKey = "canvas.config.targetedEnrollmentLookupMaxUsers.help",
+            order = 310)
+    public int getTargetedEnrollmentLookupMaxUsers() {
+        return targetedEnrollmentLookupMaxUsers;
+    }
+
+    public void setTargetedEnrollmentLookupMaxUsers(int targetedEnrollmentLookupMaxUsers) {
+        this.targetedEnrollmentLookupMaxUsers = targetedEnrollmentLookupMaxUsers;
+    }
+
+    /**
+     * Number of enrollment changes (create, reactivate, delete) of a single update operation executed concurrently.
+     * Value 1 means that the changes are executed one by one.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.enrollmentWriteParallelism",
+            helpMessageKey = "canvas.config.enrollmentWriteParallelism.help",
+            order = 320)
+    public int getEnrollmentWriteParallelism() {
+        return enrollmentWriteParallelism;
+    }
+
+    public void setEnrollmentWriteParallelism(int enrollmentWriteParallelism) {
+        this.enrollmentWriteParallelism = enrollmentWriteParallelism;
+    }
+
+    /**
+     * Time to live of course metadata in the course cache shared by connector instances in the JVM.
+     * Value 0 means that the cache is not used.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.courseCacheTtlSeconds",
+            helpMessageKey = "canvas.config.courseCacheTtlSeconds.help",
+            order = 330)
+    public int getCourseCacheTtlSeconds() {
+        return courseCacheTtlSeconds;
+    }
+
+    public void setCourseCacheTtlSeconds(int courseCacheTtlSeconds) {
+        this.courseCacheTtlSeconds = courseCacheTtlSeconds;
+    }
+
+    /** Maximal number of courses in the course cache, least recently used courses are evicted. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.courseCacheMaxSize",
+            helpMessageKey = "canvas.config.courseCacheMaxSize.help",
+            order = 340)
+    public int getCourseCacheMaxSize() {
+        return courseCacheMaxSize;
+    }
+
+    public void setCourseCacheMaxSize(int courseCacheMaxSize) {
+        this.courseCacheMaxSize = courseCacheMaxSize;
+    }
+
+    /**
+     * Time to live of user and course enrollments in the enrollment cache shared by connector instances in the JVM.
+     * Enrollment changes done by the connector are written through to the cache.
+     * Value 0 means that the cache is not used.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.enrollmentCacheTtlSeconds",
+            helpMessageKey = "canvas.config.enrollmentCacheTtlSeconds.help",
+            order = 350)
+    public int getEnrollmentCacheTtlSeconds() {
+        return enrollmentCacheTtlSeconds;
+    }
+
+    public void setEnrollmentCacheTtlSeconds(int enrollmentCacheTtlSeconds) {
+        this.enrollmentCacheTtlSeconds = enrollmentCacheTtlSeconds;
+    }
+
+    /**
+     * Time to live of just created users in the cache used to answer reads following the creation without REST calls.
+     * Value 0 means that the cache is not used.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.createdUserCacheTtlSeconds",
+            helpMessageKey = "canvas.config.createdUserCacheTtlSeconds.help",
+            order = 360)
+    public int getCreatedUserCacheTtlSeconds() {
+        return createdUserCacheTtlSeconds;
+    }
+
+    public void setCreatedUserCacheTtlSeconds(int createdUserCacheTtlSeconds) {
+        this.createdUserCacheTtlSeconds = createdUserCacheTtlSeconds;
+    }
+
+    /**
+     * Minimal estimated remaining capacity of the Canvas rate limit bucket (see {@code X-Rate-Limit-Remaining}).
+     * When the estimate drops below this, requests wait for the bucket to leak.
+     * The estimate is shared by all connector instances using the same token.
+     * Value 0 disables the client-side rate limiting.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.rateLimitMinRemaining",
+            helpMessageKey = "canvas.config.rateLimitMinRemaining.help",
+            order = 130)
+    public int getRateLimitMinRemaining() {
+        return rateLimitMinRemaining;
+    }
+
+    public void setRateLimitMinRemaining(int rateLimitMinRemaining) {
+        this.rateLimitMinRemaining = rateLimitMinRemaining;
+    }
+
+    /**
+     * How many times a request is retried after a transient failure.
+     * Throttled requests (403 "Rate Limit Exceeded", 429) are retried for any request,
+     * server errors (502, 503, 504) and I/O errors only for requests safe to repeat (GET, PUT, DELETE
+     * and enrollment creation).
+     * Value 0 disables the retries.
+     */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.maxRetries",
+            helpMessageKey = "canvas.config.maxRetries.help",
+            order = 140)
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /** Delay before the first retry, doubled for each next retry, with random jitter. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.retryInitialDelayMillis",
+            helpMessageKey = "canvas.config.retryInitialDelayMillis.help",
+            order = 150)
+    public int getRetryInitialDelayMillis() {
+        return retryInitialDelayMillis;
+    }
+
+    public void setRetryInitialDelayMillis(int retryInitialDelayMillis) {
+        this.retryInitialDelayMillis = retryInitialDelayMillis;
+    }
+
+    /** Maximum delay between retries, longer Retry-After provided by the server is capped to it as well. */
+    @ConfigurationProperty(
+            required = false,
+            displayMessageKey = "canvas.config.retryMaxDelayMillis",
+            helpMessageKey = "canvas.config.retryMaxDelayMillis.help",
+            order = 160)
+    public int getRetryMaxDelayMillis() {
+        return retryMaxDelayMillis;
+    }
+
+    public void setRetryMaxDelayMillis(int retryMaxDelayMillis) {
+        this.retryMaxDelayMillis = retryMaxDelayMillis;
+    }
+
     @Override
     public void validate() {
         if (baseUrl == null || baseUrl.isEmpty()) {
@@ -132,5 +634,67 @@ public class CanvasConfiguration extends AbstractConfiguration {
         if (studentRoleId == 0) {
             throw new IllegalArgumentException("Canvas course-level role ID for student (studentRoleId) must not be null/zero");
         }
+        if (maxConnectionsPerRoute < 1) {
+            throw new IllegalArgumentException("Max connections per route (maxConnectionsPerRoute) must be at least 1");
+        }
+        if (connectionKeepAliveSeconds < 1) {
+            throw new IllegalArgumentException("Connection keep-alive (connectionKeepAliveSeconds) must be at least 1");
+        }
+        if (connectionIdleTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("Connection idle timeout (connectionIdleTimeoutSeconds) must be at least 1");
+        }
+        if (connectTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("Connect timeout (connectTimeoutSeconds) must be at least 1");
+        }
+        if (socketTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("Socket timeout (socketTimeoutSeconds) must be at least 1");
+        }
+        if (connectionRequestTimeoutSeconds < 1) {
+            throw new IllegalArgumentException(
+                    "Connection request timeout (connectionRequestTimeoutSeconds) must be at least 1");
+        }
+        if (enrichmentParallelism < 1) {
+            throw new IllegalArgumentException("Enrichment parallelism (enrichmentParallelism) must be at least 1");
+        }
+        if (createdUserCacheTtlSeconds < 0) {
+            throw new IllegalArgumentException("Created user cache TTL (createdUserCacheTtlSeconds) must not be negative");
+        }
+        if (enrollmentCacheTtlSeconds < 0) {
+            throw new IllegalArgumentException("Enrollment cache TTL (enrollmentCacheTtlSeconds) must not be negative");
+        }
+        if (courseCacheTtlSeconds < 0) {
+            throw new IllegalArgumentException("Course cache TTL (courseCacheTtlSeconds) must not be negative");
+        }
+        if (courseCacheMaxSize < 1) {
+            throw new IllegalArgumentException("Course cache max size (courseCacheMaxSize) must be at least 1");
+        }
+        if (enrollmentWriteParallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Enrollment write parallelism (enrollmentWriteParallelism) must be at least 1");
+        }
+        if (targetedEnrollmentLookupMaxUsers < 0) {
+            throw new IllegalArgumentException(
+                    "Targeted enrollment lookup limit (targetedEnrollmentLookupMaxUsers) must not be negative");
+        }
+        if (pageFanOutConcurrency < 1) {
+            throw new IllegalArgumentException("Page fan-out concurrency (pageFanOutConcurrency) must be at least 1");
+        }
+        if (pagePrefetchDepth < 0) {
+            throw new IllegalArgumentException("Page prefetch depth (pagePrefetchDepth) must not be negative");
+        }
+        if (rateLimitMinRemaining < 0) {
+            throw new IllegalArgumentException("Rate limit minimum (rateLimitMinRemaining) must not be negative");
+        }
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("Max retries (maxRetries) must not be negative");
+        }
+        if (retryInitialDelayMillis < 1 || retryMaxDelayMillis < retryInitialDelayMillis) {
+            throw new IllegalArgumentException("Retry delays (retryInitialDelayMillis, retryMaxDelayMillis) must be positive"
+                    + " and max delay must not be lower than the initial delay");
+        }
+        if (reportPollIntervalMillis < 1 || reportTimeoutSeconds < 1) {
+            throw new IllegalArgumentException(
+                    "Report poll interval (reportPollIntervalMillis) and timeout (reportTimeoutSeconds) must be positive");
+        }
     }
 }
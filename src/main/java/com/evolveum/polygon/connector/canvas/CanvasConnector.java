@@ -16,12 +16,23 @@
 package com.evolveum.polygon.connector.canvas;
 
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.time.ZonedDateTime;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.common.security.GuardedString;
@@ -34,8 +45,10 @@ import org.identityconnectors.framework.common.objects.filter.FilterTranslator;
 import org.identityconnectors.framework.spi.Configuration;
 import org.identityconnectors.framework.spi.Connector;
 import org.identityconnectors.framework.spi.ConnectorClass;
+import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.identityconnectors.framework.spi.operations.*;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
@@ -53,6 +66,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
 
     // API paths
     private static final String API_USER_DETAILS = "/users/"; // followed by id
+    private static final String API_USER_BY_LOGIN = "/users/sis_login_id:"; // followed by encoded login
     private static final String API_COURSES_DETAILS = "/courses/"; // followed by id
     private static final String API_ACCOUNTS = "/accounts/";
 
@@ -171,7 +185,6 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     public static final String TEACHER_IDS = "teacher_ids";
     public static final String STUDENT_IDS = "student_ids";
 
-    public static final int LIST_MAX_ITEMS = 10000;
     public static final int DUPLICATE_MAX_PAGES = 100;
     public static final int ENROLLMENTS_MAX_PAGES = 100;
 
@@ -181,13 +194,21 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
 
     private CanvasConfiguration configuration;
     private CanvasClient canvasClient;
+    private CanvasCourseCache courseCache; // null if disabled
+    private CanvasEnrollmentCache enrollmentCache; // null if disabled
+    private CanvasCreatedUserCache createdUserCache; // null if disabled
     private String apiAccountUsers; // without /api/v1 prefix
     private String apiAccountCourses; // without /api/v1 prefix
+    // course ID -> course is in the root account accountId, root account of a course doesn't change
+    private final Map<Integer, Boolean> coursesInAccount = new ConcurrentHashMap<>();
 
     @Override
     public void init(Configuration configuration) {
         this.configuration = (CanvasConfiguration) configuration;
         this.canvasClient = new CanvasClient(this.configuration);
+        this.courseCache = CanvasCourseCache.get(this.configuration);
+        this.enrollmentCache = CanvasEnrollmentCache.get(this.configuration);
+        this.createdUserCache = CanvasCreatedUserCache.get(this.configuration);
 
         this.apiAccountUsers = API_ACCOUNTS + this.configuration.getAccountId() + "/users";
         this.apiAccountCourses = API_ACCOUNTS + this.configuration.getAccountId() + "/courses";
@@ -196,7 +217,12 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     @Override
     public void test() {
         LOG.ok("test - reading admin user");
+        canvasClient.startOperation("test");
         canvasClient.get(API_USER_DETAILS + "/self");
+        if (courseCache != null) {
+            // test connection is the explicit way to start with fresh data
+            courseCache.invalidateAll();
+        }
     }
 
     @Override
@@ -207,6 +233,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     @Override
     public void executeQuery(ObjectClass objectClass, CanvasFilter filter, ResultsHandler resultHandler, OperationOptions options) {
         LOG.info(">>> executeQuery: {0}, {1}, {2}, {3}", objectClass, filter, resultHandler, options);
+        canvasClient.startOperation("executeQuery");
         checkNotNull(objectClass, "objectClass");
         checkNotNull(resultHandler, "resultHandler");
 
@@ -216,7 +243,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
             } else if (filter != null && filter.loginEqualTo != null) {
                 JSONObject userByLogin = findUserByLogin(filter.loginEqualTo);
                 if (userByLogin != null) {
-                    resultHandler.handle(createAccountConnectorObject(userByLogin));
+                    resultHandler.handle(createAccountConnectorObject(userByLogin, createReadContext(options)));
                 }
             } else {
                 listAll(objectClass, resultHandler, options);
@@ -249,25 +276,78 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
 
     private void getById(ObjectClass objectClass, String id, ResultsHandler handler, OperationOptions options) {
         if (objectClass.equals(OBJECT_CLASS_USER)) {
+            CanvasCreatedUserCache.CreatedUser createdUser = createdUserCache != null && isNumericId(id)
+                    ? createdUserCache.get(Integer.parseInt(id)) : null;
+            if (createdUser != null) {
+                handler.handle(createAccountConnectorObject(
+                        createdUser.user(), createCreatedUserReadContext(createdUser, options)));
+                return;
+            }
             CanvasResponse response = canvasClient.get(API_USER_DETAILS + id,
                     handleNotFoundAndNotSuccess(id, objectClass));
             JSONObject detailJson = new JSONObject(response.body);
             // Deleted users don't have login_id
             if (detailJson.has(LOGIN_ID)) {
-                handler.handle(createAccountConnectorObject(detailJson));
+                ReadContext readContext = createReadContext(options);
+                if (isGraphqlEnrollmentsUsed(readContext)) {
+                    readContext.enrollmentIndex = fetchUserEnrollmentIndexWithGraphql(List.of(detailJson.getInt(ID)));
+                }
+                handler.handle(createAccountConnectorObject(detailJson, readContext));
             } else {
                 throw new UnknownUidException(new Uid(id), objectClass);
             }
         } else if (objectClass.equals(OBJECT_CLASS_COURSE)) {
-            CanvasResponse response = canvasClient.get(API_COURSES_DETAILS + id,
-                    handleNotFoundAndNotSuccess(id, objectClass));
-            JSONObject detailJson = new JSONObject(response.body);
-            handler.handle(createGroupConnectorObject(detailJson));
+            JSONObject detailJson = fetchCourse(id);
+            handler.handle(createGroupConnectorObject(detailJson, createReadContext(options)));
         } else {
             throw new IllegalArgumentException("Object class '" + objectClass + "' not supported.");
         }
     }
 
+    /** Read context with the login and enrollments of the created user, so no REST calls are needed. */
+    private ReadContext createCreatedUserReadContext(
+            CanvasCreatedUserCache.CreatedUser createdUser, OperationOptions options) {
+        int userId = createdUser.user().getInt(ID);
+        ReadContext readContext = createReadContext(options);
+        readContext.loginsByUserId = Map.of(userId, createdUser.login());
+        readContext.enrollmentIndex = new EnrollmentIndex();
+        for (int courseId : createdUser.studentCourseIds()) {
+            readContext.enrollmentIndex.addStudent(userId, courseId);
+        }
+        for (int courseId : createdUser.teacherCourseIds()) {
+            readContext.enrollmentIndex.addTeacher(userId, courseId);
+        }
+        return readContext;
+    }
+
+    private static boolean isNumericId(String id) {
+        return !id.isEmpty() && id.chars().allMatch(Character::isDigit);
+    }
+
+    /** Returns course detail JSON, from the course cache if enabled, the JSON must not be modified. */
+    private JSONObject fetchCourse(String id) {
+        boolean cacheable = courseCache != null && isNumericId(id);
+        JSONObject cached = cacheable ? courseCache.get(Integer.parseInt(id)) : null;
+        if (cached != null) {
+            return cached;
+        }
+        CanvasResponse response;
+        try {
+            response = canvasClient.get(API_COURSES_DETAILS + id,
+                    handleNotFoundAndNotSuccess(id, OBJECT_CLASS_COURSE));
+        } catch (UnknownUidException e) {
+            if (cacheable) {
+                courseCache.invalidate(Integer.parseInt(id));
+            }
+            throw e;
+        }
+        JSONObject detailJson = new JSONObject(response.body);
+        if (cacheable) {
+            courseCache.put(detailJson, configuration.getCourseCacheTtlSeconds());
+        }
+        return detailJson;
+    }
+
     private void throwIf(boolean condition, Supplier<ConnectorException> throwableSupplier) throws ConnectorException {
         if (condition) {
             throw throwableSupplier.get();
@@ -275,53 +355,434 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     }
 
     private void listAll(ObjectClass objectClass, ResultsHandler handler, OperationOptions options) {
+        Pagination pagination = Pagination.from(options);
+        if (pagination.isFullListing() && configuration.isReportListing()) {
+            listAllFromReport(objectClass, handler, options);
+            return;
+        }
+
         Function<JSONObject, ConnectorObject> connectorObjectFunction;
         String apiPath;
-        String additionalParams = "";
+        Consumer<List<JSONObject>> pagePreparation = null; // fetches bulk data for the whole page before conversion
+        boolean conversionCallsRest; // streamed response must not be open during other REST calls
         if (objectClass.equals(OBJECT_CLASS_USER)) {
-            connectorObjectFunction = json -> createAccountConnectorObject(json);
-            apiPath = apiAccountUsers;
-            additionalParams = "include[]=email&"; // paging will follow, hence &
+            ReadContext readContext = createUserListingContext(pagination, options);
+            connectorObjectFunction = json -> createAccountConnectorObject(json, readContext);
+            // logins missing in the bulk listing are read for the user
+            conversionCallsRest = readContext.loginInfo
+                    || (readContext.enrollments && readContext.enrollmentIndex == null);
+            apiPath = apiAccountUsers + "?include[]=email";
+            if (isGraphqlEnrollmentsUsed(readContext)) {
+                pagePreparation = pageObjects -> readContext.enrollmentIndex = fetchUserEnrollmentIndexWithGraphql(
+                        pageObjects.stream().map(json -> json.getInt(ID)).toList());
+            }
         } else if (objectClass.equals(OBJECT_CLASS_COURSE)) {
-            connectorObjectFunction = this::createGroupConnectorObject;
+            ReadContext readContext = createReadContext(options);
+            connectorObjectFunction = json -> {
+                if (courseCache != null) {
+                    // listed course JSON is the same as the detail, so it's cached for following reads by ID
+                    courseCache.put(json, configuration.getCourseCacheTtlSeconds());
+                }
+                coursesInAccount.put(json.getInt(ID), json.optInt("root_account_id") == configuration.getAccountId());
+                return createGroupConnectorObject(json, readContext);
+            };
+            conversionCallsRest = readContext.enrollments && readContext.enrollmentIndex == null;
             apiPath = apiAccountCourses;
         } else {
             throw new IllegalArgumentException("Object class '" + objectClass + "' not supported.");
         }
 
-        Pagination pagination = Pagination.from(options);
-        String page = String.valueOf(pagination.page);
-        String pageSize = String.valueOf(pagination.pageSize);
-        int limit = pagination.limit;
-        int skip = pagination.skip;
-        while (limit > 0) {
-            CanvasResponse response = canvasClient.get(
-                    apiPath + "?" + additionalParams + "page=" + page + "&per_page=" + pageSize);
-            JSONArray jsonArrayResults = new JSONArray(response.body);
-            for (Object o : jsonArrayResults) {
-                if (skip > 0) {
-                    // this happens when page is not perfectly aligned (page size and offset)
-                    skip--;
-                    continue;
-                }
-                JSONObject json = (JSONObject) o;
-                ConnectorObject object = connectorObjectFunction.apply(json);
-                if (!handler.handle(object)) {
-                    return;
+        ListingWindow window = new ListingWindow(pagination.skip, pagination.limit);
+        ExecutorService enrichmentExecutor = createEnrichmentExecutor();
+        CanvasResponse lastResponse = null; // null at the end means that all pages were listed
+        try (CanvasPager pager = canvasClient.pages(
+                apiPath, pagination.page, String.valueOf(pagination.pageSize), pagination.pageBudget())) {
+            if (enrichmentExecutor == null && pagePreparation == null) {
+                // objects are converted and handled one by one as they are parsed
+                Predicate<JSONObject> elementHandler = json -> {
+                    if (window.take() && !handler.handle(connectorObjectFunction.apply(json))) {
+                        window.stopped = true;
+                    }
+                    return !window.isDone();
+                };
+                while (!window.isDone()
+                        && (lastResponse = window.nextPage(pager, elementHandler, !conversionCallsRest)) != null) {
+                    // all done in the element handler
                 }
-                limit--;
-                // if limit == 0 we will handle the last object and finish
-                if (limit <= 0) {
-                    return;
+            } else {
+                List<JSONObject> pageObjects = new ArrayList<>();
+                Predicate<JSONObject> elementHandler = json -> {
+                    if (window.take()) {
+                        pageObjects.add(json);
+                    }
+                    return !window.isDone();
+                };
+                while (!window.isDone() && (lastResponse = window.nextPage(pager, elementHandler, true)) != null) {
+                    if (pagePreparation != null && !pageObjects.isEmpty()) {
+                        pagePreparation.accept(pageObjects);
+                    }
+                    if (!handlePage(pageObjects, connectorObjectFunction, handler, enrichmentExecutor)) {
+                        return;
+                    }
+                    pageObjects.clear();
                 }
             }
+        } finally {
+            if (enrichmentExecutor != null) {
+                enrichmentExecutor.shutdownNow();
+            }
+        }
 
-            page = response.nextPage;
-            if (page == null) {
+        if (pagination.cookiePaging() && !window.stopped && handler instanceof SearchResultsHandler) {
+            String cookie = lastResponse != null ? window.continuationCookie(lastResponse, pagination.pageSize) : null;
+            LOG.ok("Returning paged results cookie: {0}", cookie);
+            ((SearchResultsHandler) handler).handleResult(new SearchResult(cookie, -1));
+        }
+    }
+
+    /** Skip and limit of the listing applied to the listed objects, possibly across multiple pages. */
+    static class ListingWindow {
+
+        private int skip;
+        private int limit;
+        private boolean stopped;
+        private int seenInPage; // objects of the current page passed to take(), including skipped ones
+
+        ListingWindow(int skip, int limit) {
+            this.skip = skip;
+            this.limit = limit;
+        }
+
+        /** Returns true if the next listed object is in the window. */
+        boolean take() {
+            seenInPage++;
+            if (skip > 0) {
+                // this happens when page is not perfectly aligned (page size and offset)
+                skip--;
+                return false;
+            }
+            if (limit <= 0) {
+                return false;
+            }
+            limit--;
+            return true;
+        }
+
+        private boolean isDone() {
+            return stopped || limit <= 0;
+        }
+
+        private CanvasResponse nextPage(CanvasPager pager, Predicate<JSONObject> elementHandler,
+                boolean streamingAllowed) {
+            seenInPage = 0;
+            return pager.nextEach(elementHandler, streamingAllowed);
+        }
+
+        /**
+         * Cookie to continue after the last response when the limit was reached: next page if the whole page
+         * was used (null if it was the last page), otherwise the same page with the used objects skipped.
+         * The last page has no next link with the page size, so the requested page size is used for it.
+         */
+        String continuationCookie(CanvasResponse lastResponse, int requestedPageSize) {
+            int pageSize = lastResponse.pageSize != null ? Integer.parseInt(lastResponse.pageSize) : requestedPageSize;
+            if (seenInPage >= pageSize) {
+                return lastResponse.nextPage;
+            }
+            return Pagination.cookie(lastResponse.page, seenInPage);
+        }
+    }
+
+    /**
+     * Lists all users or courses from the provisioning report instead of the paginated listing.
+     * Report rows are converted to the same JSON properties as returned by REST, so the objects are created
+     * by the same code; enrollments and login info are taken from the report as well, without per-object calls.
+     * Only the CSVs needed for the requested attributes are included in the report.
+     */
+    private void listAllFromReport(ObjectClass objectClass, ResultsHandler handler, OperationOptions options) {
+        boolean users;
+        if (objectClass.equals(OBJECT_CLASS_USER)) {
+            users = true;
+        } else if (objectClass.equals(OBJECT_CLASS_COURSE)) {
+            users = false;
+        } else {
+            throw new IllegalArgumentException("Object class '" + objectClass + "' not supported.");
+        }
+
+        ReadContext readContext = createReadContext(options);
+        List<String> csvTypes = new ArrayList<>();
+        csvTypes.add(users ? CanvasProvisioningReport.USERS : CanvasProvisioningReport.COURSES);
+        if (readContext.enrollments) {
+            csvTypes.add(CanvasProvisioningReport.ENROLLMENTS);
+        }
+
+        try (CanvasProvisioningReport report = CanvasProvisioningReport.run(canvasClient, configuration.getAccountId(),
+                configuration.getReportPollIntervalMillis(), configuration.getReportTimeoutSeconds(), csvTypes)) {
+            if (readContext.enrollments) {
+                readContext.enrollmentIndex = buildEnrollmentIndex(report, users);
+            }
+
+            ListingWindow window = new ListingWindow(0, Pagination.NO_LIMIT);
+            if (users) {
+                Set<Integer> listedUserIds = new HashSet<>();
+                report.forEachRow(CanvasProvisioningReport.USERS, row -> {
+                    String userId = row.get("canvas_user_id");
+                    // there is a row for each login, the first one is used (like in the bulk login listing)
+                    if (isEmpty(userId) || isEmpty(row.get(LOGIN_ID))
+                            || !listedUserIds.add(Integer.valueOf(userId))) {
+                        return true;
+                    }
+                    JSONObject json = userJsonFromReport(row);
+                    readContext.loginsByUserId = Map.of(json.getInt(ID), loginJsonFromReport(row));
+                    if (window.take() && !handler.handle(createAccountConnectorObject(json, readContext))) {
+                        window.stopped = true;
+                    }
+                    return !window.isDone();
+                });
+            } else {
+                report.forEachRow(CanvasProvisioningReport.COURSES, row -> {
+                    if (isEmpty(row.get("canvas_course_id"))) {
+                        return true;
+                    }
+                    if (window.take() && !handler.handle(createGroupConnectorObject(courseJsonFromReport(row), readContext))) {
+                        window.stopped = true;
+                    }
+                    return !window.isDone();
+                });
+            }
+        }
+    }
+
+    private boolean isGraphqlEnrollmentsUsed(ReadContext readContext) {
+        return configuration.isGraphqlEnrollments() && readContext.enrollments && readContext.enrollmentIndex == null;
+    }
+
+    /**
+     * Fetches current student/teacher enrollments of the users with a single GraphQL query,
+     * see {@link CanvasGraphqlReader}. Users without enrollments have empty course IDs in the index.
+     * <p>
+     * GraphQL does not provide the root account of the course, so like with REST ({@code root_account_id}),
+     * only courses of the root account {@code accountId} are used: each course not seen before is checked
+     * with a course detail (from the course cache if enabled) and remembered for the connector instance.
+     */
+    private EnrollmentIndex fetchUserEnrollmentIndexWithGraphql(List<Integer> userIds) {
+        EnrollmentIndex index = new EnrollmentIndex();
+        List<int[]> enrollments = new ArrayList<>(); // user ID, course ID, role ID
+        new CanvasGraphqlReader(canvasClient).forEachUserEnrollment(userIds, (userId, enrollment) -> {
+            // only current states, see EnrollmentTable.isCurrent()
+            String state = enrollment.optString("state");
+            JSONObject course = enrollment.optJSONObject("course");
+            JSONObject role = enrollment.optJSONObject("role");
+            if (course == null || role == null
+                    || !(ENROLLMENT_STATE_ACTIVE.equals(state) || ENROLLMENT_STATE_INVITED.equals(state))) {
                 return;
             }
-            pageSize = response.pageSize;
+            enrollments.add(new int[] { userId,
+                    Integer.parseInt(course.getString("_id")), Integer.parseInt(role.getString("_id")) });
+        });
+        for (int[] enrollment : enrollments) {
+            int courseRoleId = enrollment[2];
+            if (courseRoleId != configuration.getStudentRoleId() && courseRoleId != configuration.getTeacherRoleId()
+                    || !isCourseInAccount(enrollment[1])) {
+                continue;
+            }
+            if (courseRoleId == configuration.getStudentRoleId()) {
+                index.addStudent(enrollment[0], enrollment[1]);
+            } else {
+                index.addTeacher(enrollment[0], enrollment[1]);
+            }
+        }
+        return index;
+    }
+
+    /** Returns true if the course belongs to the root account {@code accountId}, see {@link #coursesInAccount}. */
+    private boolean isCourseInAccount(int courseId) {
+        Boolean inAccount = coursesInAccount.get(courseId);
+        if (inAccount == null) {
+            try {
+                inAccount = fetchCourse(String.valueOf(courseId)).optInt("root_account_id")
+                        == configuration.getAccountId();
+            } catch (UnknownUidException e) {
+                LOG.ok("Enrolled course {0} not found, enrollments ignored", courseId);
+                return false; // not remembered, the course may be visible later
+            }
+            coursesInAccount.put(courseId, inAccount);
+        }
+        return inAccount;
+    }
+
+    /** Current student/teacher enrollments from the report, keyed by user IDs or course IDs. */
+    private EnrollmentIndex buildEnrollmentIndex(CanvasProvisioningReport report, boolean byUser) {
+        EnrollmentIndex index = new EnrollmentIndex();
+        report.forEachRow(CanvasProvisioningReport.ENROLLMENTS, row -> {
+            String status = row.get("status");
+            String userId = row.get("canvas_user_id");
+            String courseId = row.get("canvas_course_id");
+            String roleId = row.get("role_id");
+            // only current states, see EnrollmentTable.isCurrent()
+            if (isEmpty(userId) || isEmpty(courseId) || isEmpty(roleId)
+                    || !(ENROLLMENT_STATE_ACTIVE.equals(status) || ENROLLMENT_STATE_INVITED.equals(status))) {
+                return true;
+            }
+            int objectId = Integer.parseInt(byUser ? userId : courseId);
+            int relatedId = Integer.parseInt(byUser ? courseId : userId);
+            int courseRoleId = Integer.parseInt(roleId);
+            if (courseRoleId == configuration.getStudentRoleId()) {
+                index.addStudent(objectId, relatedId);
+            } else if (courseRoleId == configuration.getTeacherRoleId()) {
+                index.addTeacher(objectId, relatedId);
+            }
+            return true;
+        });
+        LOG.ok("Enrollment index from the report built for {0} objects", index.objectCount());
+        return index;
+    }
+
+    /** Users CSV row to REST user JSON, created_at is not in the report. */
+    private JSONObject userJsonFromReport(Map<String, String> row) {
+        JSONObject json = new JSONObject();
+        json.put(ID, Integer.parseInt(row.get("canvas_user_id")));
+        json.put(LOGIN_ID, row.get(LOGIN_ID));
+        String fullName = row.get(FULL_NAME);
+        if (isEmpty(fullName)) {
+            fullName = (row.getOrDefault("first_name", "") + " " + row.getOrDefault("last_name", "")).trim();
+        }
+        json.put(NAME, fullName);
+        json.put(SORTABLE_NAME, row.getOrDefault(SORTABLE_NAME, ""));
+        json.put(SHORT_NAME, row.getOrDefault(SHORT_NAME, ""));
+        json.put(EMAIL, row.getOrDefault(EMAIL, ""));
+        return json;
+    }
+
+    /** Users CSV row to login JSON as used in {@link #fetchLoginInfoForUser}, status is the login state. */
+    private JSONObject loginJsonFromReport(Map<String, String> row) {
+        JSONObject loginInfo = new JSONObject();
+        loginInfo.put(WORKFLOW_STATE, row.getOrDefault("status", WORKFLOW_STATE_ACTIVE));
+        String authenticationProviderId = row.get(AUTHENTICATION_PROVIDER_ID);
+        loginInfo.put(AUTHENTICATION_PROVIDER_ID,
+                isEmpty(authenticationProviderId) ? JSONObject.NULL : Integer.valueOf(authenticationProviderId));
+        return loginInfo;
+    }
+
+    /** Courses CSV row to REST course JSON, uuid and visibility flags are not in the report. */
+    private JSONObject courseJsonFromReport(Map<String, String> row) {
+        JSONObject json = new JSONObject();
+        json.put(ID, Integer.parseInt(row.get("canvas_course_id")));
+        json.put(COURSE_NAME, row.getOrDefault("long_name", ""));
+        json.put(COURSE_CODE, row.getOrDefault("short_name", ""));
+        String status = row.getOrDefault("status", "");
+        // CSV uses SIS import statuses, "active" course has workflow state "available"
+        json.put(WORKFLOW_STATE, status.equals("active") ? "available" : status);
+        json.put(COURSE_START_AT, row.getOrDefault("start_date", ""));
+        json.put(COURSE_END_AT, row.getOrDefault("end_date", ""));
+        return json;
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+
+    /** Returns null if the enrichment is sequential (in the calling thread). */
+    private ExecutorService createEnrichmentExecutor() {
+        int parallelism = configuration.getEnrichmentParallelism();
+        if (parallelism <= 1) {
+            return null;
+        }
+        return newDaemonThreadPool(parallelism, "canvas-enrichment-");
+    }
+
+    private static ExecutorService newDaemonThreadPool(int threads, String threadNamePrefix) {
+        AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadNamePrefix + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Converts objects of a single page and sends them to the handler in the original order.
+     * With executor, the conversion (including additional REST calls) runs concurrently for the whole page.
+     * Returns false if the handler requested to stop.
+     */
+    private boolean handlePage(List<JSONObject> pageObjects, Function<JSONObject, ConnectorObject> connectorObjectFunction,
+            ResultsHandler handler, ExecutorService executor) {
+        if (executor == null) {
+            for (JSONObject json : pageObjects) {
+                if (!handler.handle(connectorObjectFunction.apply(json))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        List<Future<ConnectorObject>> futures = pageObjects.stream()
+                .map(json -> executor.submit(() -> connectorObjectFunction.apply(json)))
+                .toList();
+        try {
+            for (Future<ConnectorObject> future : futures) {
+                if (!handler.handle(getConverted(future))) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            // no-op for finished conversions, stops the rest if the handler stopped or something failed
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    private ConnectorObject getConverted(Future<ConnectorObject> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for object conversion", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException("Object conversion failed: " + e.getCause(), e.getCause());
+        }
+    }
+
+    /**
+     * Bulk data is fetched only for full listing (typically reconciliation or import).
+     * For a single page it would be more expensive than the per-user calls.
+     */
+    private ReadContext createUserListingContext(Pagination pagination, OperationOptions options) {
+        ReadContext readContext = createReadContext(options);
+        if (pagination.isFullListing() && configuration.isBulkLoginListing() && readContext.loginInfo) {
+            readContext.loginsByUserId = fetchAccountLogins();
+        }
+        if (pagination.isFullListing() && configuration.isEnrollmentIndexListing() && readContext.enrollments) {
+            readContext.enrollmentIndex = buildEnrollmentIndex();
+        }
+        return readContext;
+    }
+
+    /**
+     * Decides which of the attributes requiring additional REST calls should be returned.
+     * Other attributes are always returned, they are in the main object JSON anyway.
+     */
+    private ReadContext createReadContext(OperationOptions options) {
+        ReadContext readContext = new ReadContext();
+        readContext.enrollments = isAttributeRequested(options, STUDENT_COURSE_IDS)
+                || isAttributeRequested(options, TEACHER_COURSE_IDS)
+                || isAttributeRequested(options, STUDENT_IDS)
+                || isAttributeRequested(options, TEACHER_IDS);
+        readContext.loginInfo = isAttributeRequested(options, OperationalAttributes.ENABLE_NAME)
+                || isAttributeRequested(options, AUTHENTICATION_PROVIDER_ID);
+        return readContext;
+    }
+
+    private boolean isAttributeRequested(OperationOptions options, String attrName) {
+        boolean returnedByDefault = !configuration.isEnrichmentAttributesNotReturnedByDefault();
+        String[] attributesToGet = options != null ? options.getAttributesToGet() : null;
+        if (attributesToGet == null) {
+            return returnedByDefault;
         }
+        return Arrays.asList(attributesToGet).contains(attrName)
+                || (returnedByDefault && Boolean.TRUE.equals(options.getReturnDefaultAttributes()));
     }
 
     private static final Set<AttributeInfo.Flags> ATTR_OPTIONS_REQUIRED = Set.of(AttributeInfo.Flags.REQUIRED);
@@ -332,12 +793,22 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
      */
     private static final Set<AttributeInfo.Flags> ATTR_OPTIONS_COURSE_LIST_ON_USER =
             Set.of(AttributeInfo.Flags.MULTIVALUED);
+    /** Used when configuration says that attributes requiring additional REST calls are not returned by default. */
+    private static final Set<AttributeInfo.Flags> ATTR_OPTIONS_MULTIVALUED_NOT_RETURNED_BY_DEFAULT =
+            Set.of(AttributeInfo.Flags.MULTIVALUED, AttributeInfo.Flags.NOT_RETURNED_BY_DEFAULT);
+    private static final Set<AttributeInfo.Flags> ATTR_OPTIONS_NOT_RETURNED_BY_DEFAULT =
+            Set.of(AttributeInfo.Flags.NOT_RETURNED_BY_DEFAULT);
     private static final Set<AttributeInfo.Flags> NOT_UPDATABLE_AND_NOT_CREATABLE =
             Set.of(AttributeInfo.Flags.NOT_UPDATEABLE, AttributeInfo.Flags.NOT_CREATABLE);
 
     @Override
     public Schema schema() {
         SchemaBuilder schemaBuilder = new SchemaBuilder(CanvasConnector.class);
+        boolean notReturnedByDefault = configuration.isEnrichmentAttributesNotReturnedByDefault();
+        Set<AttributeInfo.Flags> enrichmentMultivaluedFlags = notReturnedByDefault
+                ? ATTR_OPTIONS_MULTIVALUED_NOT_RETURNED_BY_DEFAULT : ATTR_OPTIONS_COURSE_LIST_ON_USER;
+        Set<AttributeInfo.Flags> enrichmentFlags = notReturnedByDefault
+                ? ATTR_OPTIONS_NOT_RETURNED_BY_DEFAULT : Set.of();
 
         ObjectClassInfoBuilder userClassBuilder = new ObjectClassInfoBuilder().setType(OBJECT_CLASS_USER.getObjectClassValue())
                 // DO NOT specify "nativeName" for Uid and Name attributes, it causes problems for association configuration.
@@ -352,11 +823,11 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 .addAttributeInfo(AttributeInfoBuilder.build(EMAIL, String.class))
                 .addAttributeInfo(AttributeInfoBuilder.build(SORTABLE_NAME, String.class))
                 .addAttributeInfo(AttributeInfoBuilder.build(SHORT_NAME, String.class))
-                .addAttributeInfo(AttributeInfoBuilder.build(AUTHENTICATION_PROVIDER_ID, Integer.class))
-                .addAttributeInfo(AttributeInfoBuilder.build(OperationalAttributes.ENABLE_NAME, Boolean.class))
+                .addAttributeInfo(AttributeInfoBuilder.build(AUTHENTICATION_PROVIDER_ID, Integer.class, enrichmentFlags))
+                .addAttributeInfo(AttributeInfoBuilder.build(OperationalAttributes.ENABLE_NAME, Boolean.class, enrichmentFlags))
                 .addAttributeInfo(OperationalAttributeInfos.PASSWORD)
-                .addAttributeInfo(AttributeInfoBuilder.build(STUDENT_COURSE_IDS, String.class, ATTR_OPTIONS_COURSE_LIST_ON_USER))
-                .addAttributeInfo(AttributeInfoBuilder.build(TEACHER_COURSE_IDS, String.class, ATTR_OPTIONS_COURSE_LIST_ON_USER));
+                .addAttributeInfo(AttributeInfoBuilder.build(STUDENT_COURSE_IDS, String.class, enrichmentMultivaluedFlags))
+                .addAttributeInfo(AttributeInfoBuilder.build(TEACHER_COURSE_IDS, String.class, enrichmentMultivaluedFlags));
         // Ignoring: sis_user_id, integration_id, sis_import_id, locale, effective_locale, permissions (and more...)
         schemaBuilder.defineObjectClass(userClassBuilder.build());
 
@@ -374,20 +845,25 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 .addAttributeInfo(AttributeInfoBuilder.build(COURSE_END_AT, String.class, NOT_UPDATABLE_AND_NOT_CREATABLE))
                 .addAttributeInfo(AttributeInfoBuilder.build(COURSE_IS_PUBLIC, Boolean.class, NOT_UPDATABLE_AND_NOT_CREATABLE))
                 .addAttributeInfo(AttributeInfoBuilder.build(COURSE_IS_PUBLIC_TO_AUTH_USERS, Boolean.class, NOT_UPDATABLE_AND_NOT_CREATABLE))
-                .addAttributeInfo(AttributeInfoBuilder.build(STUDENT_IDS, String.class, Set.of(AttributeInfo.Flags.MULTIVALUED)))
-                .addAttributeInfo(AttributeInfoBuilder.build(TEACHER_IDS, String.class, Set.of(AttributeInfo.Flags.MULTIVALUED)))
+                .addAttributeInfo(AttributeInfoBuilder.build(STUDENT_IDS, String.class, enrichmentMultivaluedFlags))
+                .addAttributeInfo(AttributeInfoBuilder.build(TEACHER_IDS, String.class, enrichmentMultivaluedFlags))
                 .build());
 
         schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsCookie(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
+        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
         return schemaBuilder.build();
     }
 
     /**
      * Creates "account" from API user object.
      * This is not for Canvas account objects which we don't list.
-     * This method also fetches the enrollments for the user.
+     * This method also fetches the enrollments and login info for the user, if requested
+     * and not already available in the read context.
      */
-    private ConnectorObject createAccountConnectorObject(JSONObject json) {
+    private ConnectorObject createAccountConnectorObject(JSONObject json, ReadContext readContext) {
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(OBJECT_CLASS_USER);
         int userId = json.getInt(ID);
@@ -398,25 +874,43 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
         builder.addAttribute(AttributeBuilder.build(FULL_NAME, json.optString(NAME)));
         builder.addAttribute(AttributeBuilder.build(EMAIL, json.optString(EMAIL)));
         String createdAt = json.optString(CREATED_AT);
-        if (createdAt != null) {
+        if (!createdAt.isEmpty()) { // not available e.g. in the provisioning report
             builder.addAttribute(AttributeBuilder.build(CREATED_AT, ZonedDateTime.parse(createdAt)));
         }
         builder.addAttribute(AttributeBuilder.build(SORTABLE_NAME, json.optString(SORTABLE_NAME)));
         builder.addAttribute(AttributeBuilder.build(SHORT_NAME, json.optString(SHORT_NAME)));
         // We ignore/don't use: INTEGRATION_ID, SIS_USER_ID, SIS_IMPORT_ID and some other
 
-        CourseEnrollments enrollments = fetchUserEnrollments(userUid.getUidValue());
-        builder.addAttribute(AttributeBuilder.build(STUDENT_COURSE_IDS,
-                enrollments.getCurrentStudentCourseIds()));
-        builder.addAttribute(AttributeBuilder.build(TEACHER_COURSE_IDS,
-                enrollments.getCurrentTeacherCourseIds()));
+        if (readContext.enrollments) {
+            if (readContext.enrollmentIndex != null) {
+                builder.addAttribute(AttributeBuilder.build(STUDENT_COURSE_IDS,
+                        readContext.enrollmentIndex.getStudentRelatedIds(userId)));
+                builder.addAttribute(AttributeBuilder.build(TEACHER_COURSE_IDS,
+                        readContext.enrollmentIndex.getTeacherRelatedIds(userId)));
+            } else {
+                CourseEnrollments enrollments = fetchUserEnrollments(userUid.getUidValue(), EnrollmentStates.READ);
+                builder.addAttribute(AttributeBuilder.build(STUDENT_COURSE_IDS,
+                        enrollments.getCurrentStudentCourseIds()));
+                builder.addAttribute(AttributeBuilder.build(TEACHER_COURSE_IDS,
+                        enrollments.getCurrentTeacherCourseIds()));
+            }
+        }
 
-        fetchLoginInfoForUser(userUid, builder);
+        if (readContext.loginInfo) {
+            fetchLoginInfoForUser(userUid, builder, readContext);
+        }
         return builder.build();
     }
 
-    private void fetchLoginInfoForUser(Uid userUid, ConnectorObjectBuilder builder) {
-        JSONObject loginInfo = getUserLoginInfo(userUid);
+    private void fetchLoginInfoForUser(Uid userUid, ConnectorObjectBuilder builder, ReadContext readContext) {
+        JSONObject loginInfo = null;
+        if (readContext.loginsByUserId != null) {
+            loginInfo = readContext.loginsByUserId.get(Integer.valueOf(userUid.getUidValue()));
+        }
+        if (loginInfo == null) {
+            // Not in the bulk listing (or bulk listing not used), we have to ask for this user
+            loginInfo = getUserLoginInfo(userUid);
+        }
         if (loginInfo != null) {
             builder.addAttribute(
                     AttributeBuilder.build(OperationalAttributes.ENABLE_NAME,
@@ -430,7 +924,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
         }
     }
 
-    private ConnectorObject createGroupConnectorObject(JSONObject json) {
+    private ConnectorObject createGroupConnectorObject(JSONObject json, ReadContext readContext) {
         ConnectorObjectBuilder builder = new ConnectorObjectBuilder();
         builder.setObjectClass(OBJECT_CLASS_COURSE);
         int courseId = json.getInt(ID);
@@ -438,7 +932,9 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
         builder.setName(new Name(json.getString(COURSE_NAME)));
         builder.addAttribute(COURSE_CODE, json.getString(COURSE_CODE));
         builder.addAttribute(WORKFLOW_STATE, json.optString(WORKFLOW_STATE));
-        builder.addAttribute(COURSE_UUID, json.getString(COURSE_UUID));
+        if (json.has(COURSE_UUID)) { // not available e.g. in the provisioning report
+            builder.addAttribute(COURSE_UUID, json.getString(COURSE_UUID));
+        }
         builder.addAttribute(COURSE_START_AT, json.optString(COURSE_START_AT));
         builder.addAttribute(COURSE_END_AT, json.optString(COURSE_END_AT));
         if (json.has(COURSE_IS_PUBLIC)) {
@@ -448,33 +944,109 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
             builder.addAttribute(COURSE_IS_PUBLIC_TO_AUTH_USERS, json.optBoolean(COURSE_IS_PUBLIC_TO_AUTH_USERS));
         }
 
-        CourseEnrollments courseEnrollments = fetchCourseEnrollments(String.valueOf(courseId));
-        builder.addAttribute(AttributeBuilder.build(STUDENT_IDS, courseEnrollments.getCurrentStudentIds()));
-        builder.addAttribute(AttributeBuilder.build(TEACHER_IDS, courseEnrollments.getCurrentTeacherIds()));
+        if (readContext.enrollments) {
+            if (readContext.enrollmentIndex != null) {
+                builder.addAttribute(AttributeBuilder.build(STUDENT_IDS,
+                        readContext.enrollmentIndex.getStudentRelatedIds(courseId)));
+                builder.addAttribute(AttributeBuilder.build(TEACHER_IDS,
+                        readContext.enrollmentIndex.getTeacherRelatedIds(courseId)));
+            } else {
+                CourseEnrollments courseEnrollments =
+                        fetchCourseEnrollments(String.valueOf(courseId), EnrollmentStates.READ);
+                builder.addAttribute(AttributeBuilder.build(STUDENT_IDS, courseEnrollments.getCurrentStudentIds()));
+                builder.addAttribute(AttributeBuilder.build(TEACHER_IDS, courseEnrollments.getCurrentTeacherIds()));
+            }
+        }
 
         return builder.build();
     }
 
-    private CourseEnrollments fetchUserEnrollments(String userId) {
-        return fetchEnrollments(API_USER_DETAILS + userId);
+    /** Query parameters limiting listed enrollments to the configured student and teacher roles. */
+    private String enrollmentRoleFilter() {
+        return "&role_id[]=" + configuration.getStudentRoleId()
+                + "&role_id[]=" + configuration.getTeacherRoleId();
+    }
+
+    private CourseEnrollments fetchUserEnrollments(String userId, EnrollmentStates states) {
+        return fetchCachedEnrollments(CanvasEnrollmentCache.userKey(userId), API_USER_DETAILS + userId, states);
+    }
+
+    private CourseEnrollments fetchCourseEnrollments(String courseId, EnrollmentStates states) {
+        return fetchCachedEnrollments(CanvasEnrollmentCache.courseKey(courseId), API_COURSES_DETAILS + courseId, states);
+    }
+
+    /** Uses the enrollment cache if enabled, enrollments in all states are also good for the current ones. */
+    private CourseEnrollments fetchCachedEnrollments(String cacheKey, String restCallPrefix, EnrollmentStates states) {
+        if (enrollmentCache == null) {
+            return fetchEnrollments(restCallPrefix, states);
+        }
+        boolean allStates = states == EnrollmentStates.WRITE;
+        CanvasEnrollmentCache.Enrollments cached = enrollmentCache.get(cacheKey, allStates);
+        if (cached != null) {
+            CourseEnrollments courseEnrollments = new CourseEnrollments();
+            courseEnrollments.studentEnrollments = cached.students();
+            courseEnrollments.teacherEnrollments = cached.teachers();
+            return courseEnrollments;
+        }
+        CourseEnrollments courseEnrollments = fetchEnrollments(restCallPrefix, states);
+        enrollmentCache.put(cacheKey, courseEnrollments.studentEnrollments, courseEnrollments.teacherEnrollments,
+                allStates, configuration.getEnrollmentCacheTtlSeconds());
+        return courseEnrollments;
+    }
+
+    /**
+     * Enrollment states requested from Canvas.
+     * Reads need only current states (see {@link EnrollmentTable#isCurrent}), historic (e.g. completed)
+     * enrollments accumulate over time and would only inflate the responses.
+     * Writes need all states to reuse (reactivate) existing enrollments instead of creating new ones.
+     */
+    private enum EnrollmentStates {
+        READ("state[]=active&state[]=invited"),
+        WRITE("state[]=active&state[]=invited"
+                + "&state[]=creation_pending&state[]=rejected"
+                + "&state[]=completed&state[]=inactive");
+
+        private final String queryParameters;
+
+        EnrollmentStates(String queryParameters) {
+            this.queryParameters = queryParameters;
+        }
     }
 
-    private CourseEnrollments fetchCourseEnrollments(String courseId) {
-        return fetchEnrollments(API_COURSES_DETAILS + courseId);
+    /**
+     * Only enrollments with configured student/teacher roles are requested, other roles (observers, designers...)
+     * are ignored by the connector anyway. Root account is still checked here, Canvas can't filter by it.
+     */
+    private CourseEnrollments fetchEnrollments(String restCallPrefix, EnrollmentStates states) {
+        CourseEnrollments courseEnrollments = new CourseEnrollments();
+        fetchEnrollmentsInto(courseEnrollments, restCallPrefix + "/enrollments?" + states.queryParameters);
+        return courseEnrollments;
     }
 
-    private CourseEnrollments fetchEnrollments(String restCallPrefix) {
+    /**
+     * Returns enrollments of the course (all states) for the specified users only.
+     * For a few users, their enrollments are looked up one by one with {@code user_id} parameter, which is much
+     * cheaper than listing all enrollments of a big course; otherwise all course enrollments are fetched.
+     */
+    private CourseEnrollments fetchCourseEnrollmentsOfUsers(String courseId, Collection<String> userIds) {
+        if (!isTargetedEnrollmentLookup(userIds.size())) {
+            return fetchCourseEnrollments(courseId, EnrollmentStates.WRITE);
+        }
         CourseEnrollments courseEnrollments = new CourseEnrollments();
-        String page = "1";
-        String pageSize = "100";
-        for (int sanity = ENROLLMENTS_MAX_PAGES; sanity > 0; sanity--) {
-            CanvasResponse response = canvasClient.get(
-                    restCallPrefix + "/enrollments?state[]=active&state[]=invited"
-                            + "&state[]=creation_pending&state[]=rejected"
-                            + "&state[]=completed&state[]=inactive&page=" + page + "&per_page=" + pageSize);
-            JSONArray jsonArrayResults = new JSONArray(response.body);
-            for (Object o : jsonArrayResults) {
-                JSONObject json = (JSONObject) o;
+        for (String userId : userIds) {
+            fetchEnrollmentsInto(courseEnrollments, API_COURSES_DETAILS + courseId + "/enrollments?"
+                    + EnrollmentStates.WRITE.queryParameters + "&user_id=" + Integer.valueOf(userId));
+        }
+        return courseEnrollments;
+    }
+
+    private boolean isTargetedEnrollmentLookup(int userCount) {
+        return userCount <= configuration.getTargetedEnrollmentLookupMaxUsers();
+    }
+
+    private void fetchEnrollmentsInto(CourseEnrollments courseEnrollments, String enrollmentsRequest) {
+        try (CanvasPager pager = canvasClient.pages(enrollmentsRequest + enrollmentRoleFilter())) {
+            Predicate<JSONObject> elementHandler = json -> {
                 if (json.optInt("root_account_id") == configuration.getAccountId()) {
                     int courseRoleId = json.optInt("role_id");
                     if (courseRoleId == configuration.getStudentRoleId()) {
@@ -483,15 +1055,12 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                         courseEnrollments.addTeacherEnrollment(json);
                     }
                 }
+                return true;
+            };
+            for (int sanity = ENROLLMENTS_MAX_PAGES; sanity > 0 && pager.nextEach(elementHandler) != null; sanity--) {
+                // all done in the element handler
             }
-            if (response.nextPage == null) {
-                break;
-            }
-
-            page = response.nextPage;
-            pageSize = response.pageSize;
         }
-        return courseEnrollments;
     }
 
     /*
@@ -521,6 +1090,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     @Override
     public Uid create(ObjectClass objectClass, Set<Attribute> createAttributes, OperationOptions options) {
         LOG.info(">>> create: {0}, {1}, {2}", objectClass, createAttributes, options);
+        canvasClient.startOperation("create");
         checkNotNull(objectClass, "objectClass");
         checkNotNull(createAttributes, "createAttributes");
 
@@ -579,19 +1149,28 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                     updateUserLoginInfo(uid, Map.of(OperationalAttributes.ENABLE_NAME, false));
                 }
                 // If some courses are set right away (impatient are we?) let's handle it here:
+                List<Runnable> enrollmentWrites = new ArrayList<>();
                 Attribute studentCourseIdsAttr = AttributeUtil.find(STUDENT_COURSE_IDS, createAttributes);
                 if (studentCourseIdsAttr != null) {
                     for (Object courseId : studentCourseIdsAttr.getValue()) {
-                        createEnrollment((String) courseId, uidString, configuration.getStudentRoleId());
+                        enrollmentWrites.add(() ->
+                                createEnrollment((String) courseId, uidString, configuration.getStudentRoleId()));
                     }
                 }
                 Attribute teacherCourseIdsAttr = AttributeUtil.find(TEACHER_COURSE_IDS, createAttributes);
                 if (teacherCourseIdsAttr != null) {
                     for (Object courseId : teacherCourseIdsAttr.getValue()) {
-                        createEnrollment((String) courseId, uidString, configuration.getTeacherRoleId());
+                        enrollmentWrites.add(() ->
+                                createEnrollment((String) courseId, uidString, configuration.getTeacherRoleId()));
                     }
                 }
+                executeEnrollmentWrites(enrollmentWrites);
 
+                if (createdUserCache != null) {
+                    createdUserCache.put(userId,
+                            createdUser(new JSONObject(response.body), login, createAttributes),
+                            configuration.getCreatedUserCacheTtlSeconds());
+                }
                 return uid;
             } else if (OBJECT_CLASS_COURSE.equals(objectClass)) {
                 throw new UnsupportedOperationException("Unknown object class " + objectClass);
@@ -616,28 +1195,89 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 .initUid(new Uid(uid));
     }
 
+    /**
+     * Finds the user directly with {@code GET /users/sis_login_id:<login>} (despite the name, this looks up
+     * the login unique ID) and checks that the login is on the configured account.
+     * Account users are scanned only when the direct lookup can't be used (e.g. missing permission),
+     * 404 from the lookup means there is no such user.
+     */
     private JSONObject findUserByLogin(String login) {
-        String page = "1";
-        String pageSize = "100";
-        for (int sanity = DUPLICATE_MAX_PAGES; sanity > 0; sanity--) {
-            // search_term=<login> is not helpful, because login_id is not searched for by Canvas REST
-            CanvasResponse response = canvasClient.get(
-                    apiAccountUsers + "?page=" + page + "&per_page=" + pageSize);
-            JSONArray jsonArrayResults = new JSONArray(response.body);
-            for (Object o : jsonArrayResults) {
-                JSONObject json = (JSONObject) o;
+        CanvasResponse response = canvasClient.get(API_USER_BY_LOGIN + encodePathSegment(login),
+                CanvasClient.ResponseHandler.NOOP);
+        if (response.statusCode == 404) {
+            return null;
+        }
+        if (response.isSuccess()) {
+            JSONObject json = new JSONObject(response.body);
+            // Deleted users don't have login_id
+            if (!json.has(LOGIN_ID)) {
+                return null;
+            }
+            if (login.equals(json.getString(LOGIN_ID))) {
+                JSONObject accountLogin = getUserLoginInfo(new Uid(String.valueOf(json.getInt(ID))));
+                return accountLogin != null && login.equals(accountLogin.optString(UNIQUE_ID)) ? json : null;
+            }
+            // found by another login of the user, login_id is different, try the scan like before
+        }
+        LOG.ok("Direct login lookup not usable (status {0}), scanning account users for login {1}",
+                response.statusCode, login);
+        return scanUsersForLogin(login);
+    }
+
+    /** Canvas (Rails) would interpret the part after a dot as a format, so dots are encoded as well. */
+    private static String encodePathSegment(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace(".", "%2E");
+    }
+
+    private JSONObject scanUsersForLogin(String login) {
+        // search_term=<login> is not helpful, because login_id is not searched for by Canvas REST
+        try (CanvasPager pager = canvasClient.pages(apiAccountUsers)) {
+            JSONObject[] found = new JSONObject[1];
+            Predicate<JSONObject> elementHandler = json -> {
                 if (login.equals(json.optString(LOGIN_ID))) {
-                    return json;
+                    found[0] = json;
+                    return false;
                 }
+                return true;
+            };
+            for (int sanity = DUPLICATE_MAX_PAGES;
+                    sanity > 0 && found[0] == null && pager.nextEach(elementHandler) != null; sanity--) {
+                // all done in the element handler
             }
-            if (response.nextPage == null) {
-                break;
-            }
+            return found[0];
+        }
+    }
 
-            page = response.nextPage;
-            pageSize = response.pageSize;
+    /**
+     * Returns the state of the just created user as it would be read from Canvas.
+     * Values missing in the create response are taken from the create attributes.
+     */
+    private CanvasCreatedUserCache.CreatedUser createdUser(
+            JSONObject userJson, String login, Set<Attribute> createAttributes) {
+        if (!userJson.has(LOGIN_ID)) {
+            userJson.put(LOGIN_ID, login);
         }
-        return null;
+        if (!userJson.has(EMAIL)) {
+            userJson.put(EMAIL, AttributeUtil.getStringValue(AttributeUtil.find(EMAIL, createAttributes)));
+        }
+
+        JSONObject loginInfo = new JSONObject();
+        Attribute enabledAttr = AttributeUtil.find(OperationalAttributes.ENABLE_NAME, createAttributes);
+        loginInfo.put(WORKFLOW_STATE,
+                enabledAttr != null && Boolean.FALSE.equals(AttributeUtil.getBooleanValue(enabledAttr))
+                        ? WORKFLOW_STATE_SUSPENDED
+                        : WORKFLOW_STATE_ACTIVE);
+        Attribute authProviderAttr = AttributeUtil.find(AUTHENTICATION_PROVIDER_ID, createAttributes);
+        Integer authProviderId = authProviderAttr != null ? AttributeUtil.getIntegerValue(authProviderAttr) : null;
+        loginInfo.put(AUTHENTICATION_PROVIDER_ID, authProviderId != null ? authProviderId : JSONObject.NULL);
+
+        Attribute studentCourseIdsAttr = AttributeUtil.find(STUDENT_COURSE_IDS, createAttributes);
+        Attribute teacherCourseIdsAttr = AttributeUtil.find(TEACHER_COURSE_IDS, createAttributes);
+        return new CanvasCreatedUserCache.CreatedUser(userJson, loginInfo,
+                EnrollmentDiff.sortedIds(studentCourseIdsAttr != null ? studentCourseIdsAttr.getValue() : List.of()),
+                EnrollmentDiff.sortedIds(teacherCourseIdsAttr != null ? teacherCourseIdsAttr.getValue() : List.of()));
     }
 
     /*
@@ -646,13 +1286,18 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     @Override
     public void delete(ObjectClass objectClass, Uid uid, OperationOptions options) {
         LOG.info(">>> delete: {0}, {1}, {2}", objectClass, uid, options);
+        canvasClient.startOperation("delete");
         checkNotNull(objectClass, "objectClass");
         checkNotNull(uid, "uid");
 
         try {
             if (OBJECT_CLASS_USER.equals(objectClass)) {
+                invalidateCreatedUser(uid.getUidValue());
                 canvasClient.delete(apiAccountUsers + "/" + uid.getUidValue(),
                         handleNotFoundAndNotSuccess(uid, objectClass));
+                if (enrollmentCache != null) {
+                    enrollmentCache.invalidateUser(Integer.parseInt(uid.getUidValue()));
+                }
             } else if (OBJECT_CLASS_COURSE.equals(objectClass)) {
                 throw new UnsupportedOperationException("Delete not supported for object class " + objectClass);
             } else {
@@ -674,6 +1319,7 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     public Set<AttributeDelta> updateDelta(ObjectClass objectClass,
             Uid uid, Set<AttributeDelta> modifications, OperationOptions options) {
         LOG.info(">>> updateDelta: {0}, {1}, {2}, {3}", objectClass, uid, modifications, options);
+        canvasClient.startOperation("updateDelta");
         checkNotNull(objectClass, "objectClass");
         checkNotNull(uid, "uid");
 
@@ -714,14 +1360,17 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
     }
 
     private void updateUser(Uid uid, Set<Attribute> attrsToReplace, Set<Attribute> attrsToAdd, Set<Attribute> attrsToRemove) {
+        invalidateCreatedUser(uid.getUidValue());
         JSONObject userPatchJson = new JSONObject();
         Map<String, Object> loginChanges = new HashMap<>();
 
         CourseEnrollments courseEnrollments = null;
+        List<Runnable> enrollmentWrites = new ArrayList<>();
         String userId = uid.getUidValue();
         if (containsAnyCourseIdAttribute(attrsToReplace)
+                || containsAnyCourseIdAttribute(attrsToAdd)
                 || containsAnyCourseIdAttribute(attrsToRemove)) {
-            courseEnrollments = fetchUserEnrollments(userId);
+            courseEnrollments = fetchUserEnrollments(userId, EnrollmentStates.WRITE);
         }
 
         if (!attrsToReplace.isEmpty()) {
@@ -735,13 +1384,13 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 }
                 if (attr.getName().equals(STUDENT_COURSE_IDS)) {
                     assert courseEnrollments != null;
-                    replaceUserEnrollments(courseEnrollments.studentEnrollments,
-                            attr.getValue(), configuration.getStudentRoleId(), userId);
+                    planUserEnrollmentWrites(courseEnrollments.studentEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REPLACE, configuration.getStudentRoleId(), userId, enrollmentWrites);
                 }
                 if (attr.getName().equals(TEACHER_COURSE_IDS)) {
                     assert courseEnrollments != null;
-                    replaceUserEnrollments(courseEnrollments.teacherEnrollments,
-                            attr.getValue(), configuration.getTeacherRoleId(), userId);
+                    planUserEnrollmentWrites(courseEnrollments.teacherEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REPLACE, configuration.getTeacherRoleId(), userId, enrollmentWrites);
                 }
             }
         }
@@ -756,12 +1405,14 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                     loginChanges.put(attr.getName(), AttributeUtil.getSingleValue(attr));
                 }
                 if (attr.getName().equals(STUDENT_COURSE_IDS)) {
-                    attr.getValue().forEach(courseId ->
-                            createEnrollment((String) courseId, userId, configuration.getStudentRoleId()));
+                    assert courseEnrollments != null;
+                    planUserEnrollmentWrites(courseEnrollments.studentEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.ADD, configuration.getStudentRoleId(), userId, enrollmentWrites);
                 }
                 if (attr.getName().equals(TEACHER_COURSE_IDS)) {
-                    attr.getValue().forEach(courseId ->
-                            createEnrollment((String) courseId, userId, configuration.getTeacherRoleId()));
+                    assert courseEnrollments != null;
+                    planUserEnrollmentWrites(courseEnrollments.teacherEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.ADD, configuration.getTeacherRoleId(), userId, enrollmentWrites);
                 }
             }
         }
@@ -777,14 +1428,17 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 }
                 if (attr.getName().equals(STUDENT_COURSE_IDS)) {
                     assert courseEnrollments != null;
-                    deleteEnrollmentsFromUser(courseEnrollments.studentEnrollments, attr.getValue());
+                    planUserEnrollmentWrites(courseEnrollments.studentEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REMOVE, configuration.getStudentRoleId(), userId, enrollmentWrites);
                 }
                 if (attr.getName().equals(TEACHER_COURSE_IDS)) {
                     assert courseEnrollments != null;
-                    deleteEnrollmentsFromUser(courseEnrollments.teacherEnrollments, attr.getValue());
+                    planUserEnrollmentWrites(courseEnrollments.teacherEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REMOVE, configuration.getTeacherRoleId(), userId, enrollmentWrites);
                 }
             }
         }
+        executeEnrollmentWrites(enrollmentWrites);
 
         if (userPatchJson.length() > 0) {
             // all changes are embedded under "user" key
@@ -798,24 +1452,6 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
         }
     }
 
-    private void replaceUserEnrollments(List<CourseEnrollment> existingEnrollments,
-            List<Object> newCourseIds, int roleId, String userId) {
-        Set<Object> newCourseIdsSet = new HashSet<>(newCourseIds);
-        existingEnrollments.stream()
-                .filter(e -> !newCourseIdsSet.contains(e.courseIdString())) // it's a string here!
-                .filter(e -> !e.isInactiveState())
-                .forEach(e -> deleteEnrollment(e));
-
-        Set<String> activeCourseIds = existingEnrollments.stream()
-                .filter(e -> e.state.equals(CREATED_ENROLLMENT_STATE))
-                .map(e -> e.courseIdString())
-                .collect(Collectors.toSet());
-
-        newCourseIds.stream()
-                .filter(id -> !activeCourseIds.contains((String) id))
-                .forEach(id -> createEnrollment((String) id, userId, roleId));
-    }
-
     private boolean containsAnyCourseIdAttribute(Set<Attribute> attrs) {
         return attrs.stream().anyMatch(a -> USER_ENROLLMENT_ID_ATTRS.contains(a.getName()));
     }
@@ -897,6 +1533,76 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
         return null;
     }
 
+    /**
+     * Lists all logins of the configured account and returns them indexed by user ID.
+     * Only properties needed for connector attributes are kept to save memory.
+     * If the user has more logins on the account, the first one is used.
+     */
+    private Map<Integer, JSONObject> fetchAccountLogins() {
+        Map<Integer, JSONObject> logins = new HashMap<>();
+        try (CanvasPager pager = canvasClient.pages(API_ACCOUNTS + configuration.getAccountId() + "/logins")) {
+            Predicate<JSONObject> elementHandler = login -> {
+                if (login.optInt("account_id") == configuration.getAccountId()) {
+                    JSONObject loginInfo = new JSONObject();
+                    loginInfo.put(WORKFLOW_STATE, login.getString(WORKFLOW_STATE));
+                    if (login.has(AUTHENTICATION_PROVIDER_ID)) {
+                        loginInfo.put(AUTHENTICATION_PROVIDER_ID, login.get(AUTHENTICATION_PROVIDER_ID));
+                    }
+                    logins.putIfAbsent(login.getInt("user_id"), loginInfo);
+                }
+                return true;
+            };
+            while (pager.nextEach(elementHandler) != null) {
+                // all done in the element handler
+            }
+        }
+        LOG.ok("Fetched logins for {0} users on account {1}", logins.size(), configuration.getAccountId());
+        return logins;
+    }
+
+    /**
+     * Builds user ID -> course IDs index from the current enrollments of all account courses.
+     * This needs a few calls per course instead of a call per user, which is much better when
+     * there are many more users than courses.
+     */
+    private EnrollmentIndex buildEnrollmentIndex() {
+        // Course IDs are collected first, so no course page response is kept open while enrollments are fetched.
+        List<Integer> courseIds = new ArrayList<>();
+        try (CanvasPager pager = canvasClient.pages(apiAccountCourses)) {
+            while (pager.nextEach(json -> courseIds.add(json.getInt(ID))) != null) {
+                // all done in the element handler
+            }
+        }
+        EnrollmentIndex index = new EnrollmentIndex();
+        for (int courseId : courseIds) {
+            addCourseToEnrollmentIndex(index, courseId);
+        }
+        LOG.ok("Enrollment index built from {0} courses for {1} users", courseIds.size(), index.objectCount());
+        return index;
+    }
+
+    private void addCourseToEnrollmentIndex(EnrollmentIndex index, int courseId) {
+        // Only current states are needed for reading, see EnrollmentTable.isCurrent()
+        try (CanvasPager pager = canvasClient.pages(API_COURSES_DETAILS + courseId
+                + "/enrollments?" + EnrollmentStates.READ.queryParameters
+                + enrollmentRoleFilter())) {
+            Predicate<JSONObject> elementHandler = json -> {
+                if (json.optInt("root_account_id") == configuration.getAccountId()) {
+                    int courseRoleId = json.optInt("role_id");
+                    if (courseRoleId == configuration.getStudentRoleId()) {
+                        index.addStudent(json.getInt("user_id"), courseId);
+                    } else if (courseRoleId == configuration.getTeacherRoleId()) {
+                        index.addTeacher(json.getInt("user_id"), courseId);
+                    }
+                }
+                return true;
+            };
+            while (pager.nextEach(elementHandler) != null) {
+                // all done in the element handler
+            }
+        }
+    }
+
     private void updateCourse(Uid uid, Set<Attribute> attrsToReplace, Set<Attribute> attrsToAdd, Set<Attribute> attrsToRemove) {
         Predicate<Attribute> attrToRemovePredicate = a -> !a.getName().equals(STUDENT_IDS) && !a.getName().equals(TEACHER_IDS);
         attrsToReplace.removeIf(attrToRemovePredicate);
@@ -909,63 +1615,112 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
 
         String courseId = uid.getUidValue();
         CourseEnrollments courseEnrollments = null;
+        List<Runnable> enrollmentWrites = new ArrayList<>();
         if (!attrsToReplace.isEmpty()) {
             // For replace we need to know current state as well, so we fetch it:
-            courseEnrollments = fetchCourseEnrollments(courseId);
+            courseEnrollments = fetchCourseEnrollments(courseId, EnrollmentStates.WRITE);
             for (Attribute attr : attrsToReplace) {
                 if (attr.getName().equals(STUDENT_IDS)) {
-                    replaceCourseEnrollments(courseEnrollments.studentEnrollments,
-                            attr.getValue(), configuration.getStudentRoleId(), courseId);
+                    planCourseEnrollmentWrites(courseEnrollments.studentEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REPLACE, configuration.getStudentRoleId(), courseId, enrollmentWrites);
                 }
                 if (attr.getName().equals(TEACHER_IDS)) {
-                    replaceCourseEnrollments(courseEnrollments.teacherEnrollments,
-                            attr.getValue(), configuration.getTeacherRoleId(), courseId);
+                    planCourseEnrollmentWrites(courseEnrollments.teacherEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REPLACE, configuration.getTeacherRoleId(), courseId, enrollmentWrites);
                 }
             }
         }
 
-        // For add, we don't bother to query existing enrollments, it's safe to re-add
+        // For delete we need the enrollmentId - if we have it already from REPLACE, we'll reuse it.
+        // For add, existing enrollments are fetched only if the targeted lookup can be used (or they are
+        // needed for delete anyway), otherwise we don't bother and simply re-add, which is safe.
+        if (courseEnrollments == null) {
+            Set<String> changedUserIds = userIdsOf(attrsToRemove);
+            changedUserIds.addAll(userIdsOf(attrsToAdd));
+            if (!attrsToRemove.isEmpty() || isTargetedEnrollmentLookup(changedUserIds.size())) {
+                courseEnrollments = fetchCourseEnrollmentsOfUsers(courseId, changedUserIds);
+            }
+        }
+
+        // Unknown existing enrollments are like no enrollments, all added ones are simply created then
+        CourseEnrollments existingForAdd = courseEnrollments != null ? courseEnrollments : new CourseEnrollments();
         for (Attribute attr : attrsToAdd) {
             if (attr.getName().equals(STUDENT_IDS)) {
-                attr.getValue().forEach(userId ->
-                        createEnrollment(courseId, (String) userId, configuration.getStudentRoleId()));
+                planCourseEnrollmentWrites(existingForAdd.studentEnrollments, attr.getValue(),
+                        EnrollmentDiff.Mode.ADD, configuration.getStudentRoleId(), courseId, enrollmentWrites);
             }
             if (attr.getName().equals(TEACHER_IDS)) {
-                attr.getValue().forEach(userId ->
-                        createEnrollment(courseId, (String) userId, configuration.getTeacherRoleId()));
+                planCourseEnrollmentWrites(existingForAdd.teacherEnrollments, attr.getValue(),
+                        EnrollmentDiff.Mode.ADD, configuration.getTeacherRoleId(), courseId, enrollmentWrites);
             }
         }
 
-        // For delete we need the enrollmentId - if we have it already from REPLACE, we'll reuse it
         if (!attrsToRemove.isEmpty()) {
-            courseEnrollments = courseEnrollments != null ? courseEnrollments : fetchCourseEnrollments(courseId);
+            assert courseEnrollments != null;
             for (Attribute attr : attrsToRemove) {
                 if (attr.getName().equals(STUDENT_IDS)) {
-                    deleteEnrollmentsFromCourse(courseEnrollments.studentEnrollments, attr.getValue());
+                    planCourseEnrollmentWrites(courseEnrollments.studentEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REMOVE, configuration.getStudentRoleId(), courseId, enrollmentWrites);
                 }
                 if (attr.getName().equals(TEACHER_IDS)) {
-                    deleteEnrollmentsFromCourse(courseEnrollments.teacherEnrollments, attr.getValue());
+                    planCourseEnrollmentWrites(courseEnrollments.teacherEnrollments, attr.getValue(),
+                            EnrollmentDiff.Mode.REMOVE, configuration.getTeacherRoleId(), courseId, enrollmentWrites);
                 }
             }
         }
+        executeEnrollmentWrites(enrollmentWrites);
     }
 
-    private void replaceCourseEnrollments(List<CourseEnrollment> existingEnrollments,
-            List<Object> newUserIds, int roleId, String courseId) {
-        Set<Object> newUserIdsSet = new HashSet<>(newUserIds);
-        existingEnrollments.stream()
-                .filter(e -> !newUserIdsSet.contains(e.userIdString())) // it's a string here!
-                .filter(e -> !e.isInactiveState())
-                .forEach(e -> deleteEnrollment(e));
+    private Set<String> userIdsOf(Set<Attribute> attrs) {
+        Set<String> userIds = new HashSet<>();
+        attrs.forEach(attr -> attr.getValue().forEach(id -> userIds.add((String) id)));
+        return userIds;
+    }
 
-        Set<String> activeUserIds = existingEnrollments.stream()
-                .filter(e -> e.state.equals(CREATED_ENROLLMENT_STATE))
-                .map(e -> e.userIdString())
-                .collect(Collectors.toSet());
+    /** Adds enrollment changes of the user for one role, existing enrollments are matched by course ID. */
+    private void planUserEnrollmentWrites(EnrollmentTable existingEnrollments, List<Object> courseIds,
+            EnrollmentDiff.Mode mode, int roleId, String userId, List<Runnable> writes) {
+        EnrollmentDiff diff = EnrollmentDiff.compute(
+                existingEnrollments, false, EnrollmentDiff.sortedIds(courseIds), mode);
+        addEnrollmentWrites(existingEnrollments, diff,
+                courseId -> createEnrollment(String.valueOf(courseId), userId, roleId), writes);
+    }
+
+    /** Adds enrollment changes of the course for one role, existing enrollments are matched by user ID. */
+    private void planCourseEnrollmentWrites(EnrollmentTable existingEnrollments, List<Object> userIds,
+            EnrollmentDiff.Mode mode, int roleId, String courseId, List<Runnable> writes) {
+        EnrollmentDiff diff = EnrollmentDiff.compute(
+                existingEnrollments, true, EnrollmentDiff.sortedIds(userIds), mode);
+        addEnrollmentWrites(existingEnrollments, diff,
+                userId -> createEnrollment(courseId, String.valueOf(userId), roleId), writes);
+    }
 
-        newUserIds.stream()
-                .filter(id -> !activeUserIds.contains((String) id))
-                .forEach(id -> createEnrollment(courseId, (String) id, roleId));
+    private void addEnrollmentWrites(EnrollmentTable existingEnrollments, EnrollmentDiff diff,
+            IntConsumer enrollmentCreator, List<Runnable> writes) {
+        for (int row : diff.inactivateRows) {
+            CourseEnrollment enrollment = new CourseEnrollment(existingEnrollments, row);
+            writes.add(() -> deleteEnrollment(enrollment));
+        }
+        for (int row : diff.reactivateRows) {
+            CourseEnrollment enrollment = new CourseEnrollment(existingEnrollments, row);
+            writes.add(() -> reactivateEnrollment(enrollment));
+        }
+        for (int relatedId : diff.createIds) {
+            writes.add(() -> enrollmentCreator.accept(relatedId));
+        }
+    }
+
+    /*
+    curl -H "Authorization: Bearer $TOKEN" "$BASE_URL/api/v1/courses/1/enrollments/2/reactivate" -X PUT
+    See: https://canvas.instructure.com/doc/api/enrollments.html#method.enrollments_api.reactivate
+    */
+    private void reactivateEnrollment(CourseEnrollment enrollment) {
+        LOG.info("reactivating enrollment: id {0}, user_id {1}, course_id {2}",
+                enrollment.enrollmentId, enrollment.userId, enrollment.courseId);
+        CanvasResponse response = writeEnrollment(enrollment.userId, enrollment.courseId,
+                () -> canvasClient.putJson(API_COURSES_DETAILS + enrollment.courseId + "/enrollments/"
+                        + enrollment.enrollmentId + "/reactivate", "{}"));
+        updateEnrollmentCache(response, enrollment.userId, enrollment.courseId);
     }
 
     private void deleteEnrollment(CourseEnrollment enrollment) {
@@ -973,8 +1728,10 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 enrollment.enrollmentId, enrollment.userId, enrollment.courseId);
         // Without explicit parameter, the state is changed to "completed" (delete task "concluded")
         // See: https://canvas.instructure.com/doc/api/enrollments.html#method.enrollments_api.destroy
-        canvasClient.delete(API_COURSES_DETAILS + enrollment.courseId + "/enrollments/"
-                + enrollment.enrollmentId + "?task=inactivate");
+        CanvasResponse response = writeEnrollment(enrollment.userId, enrollment.courseId,
+                () -> canvasClient.delete(API_COURSES_DETAILS + enrollment.courseId + "/enrollments/"
+                        + enrollment.enrollmentId + "?task=inactivate"));
+        updateEnrollmentCache(response, enrollment.userId, enrollment.courseId);
     }
 
     /*
@@ -990,23 +1747,112 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
                 "role_id", roleId,
                 "enrollment_state", CREATED_ENROLLMENT_STATE,
                 "notify", configuration.isSendEnrollmentNotification()));
-        canvasClient.postJson(API_COURSES_DETAILS + courseId + "/enrollments", json.toString());
+        // Canvas reuses existing enrollment for the same user, course and role, so this can be retried.
+        CanvasResponse response = writeEnrollment(userId, courseId,
+                () -> canvasClient.postJsonRetrySafe(API_COURSES_DETAILS + courseId + "/enrollments", json.toString()));
+        updateEnrollmentCache(response, userId, courseId);
+    }
+
+    /**
+     * Executes the enrollment change, the user and course are removed from the enrollment cache if it fails.
+     * The user is removed from the created user cache in any case.
+     */
+    private CanvasResponse writeEnrollment(Object userId, Object courseId, Supplier<CanvasResponse> request) {
+        invalidateCreatedUser(String.valueOf(userId));
+        try {
+            return request.get();
+        } catch (RuntimeException e) {
+            if (enrollmentCache != null) {
+                enrollmentCache.invalidate(userId, courseId);
+            }
+            throw e;
+        }
     }
 
-    private void deleteEnrollmentsFromCourse(List<CourseEnrollment> existingEnrollments, List<Object> userIdsToDelete) {
-        Set<Object> idsToDeleteSet = new HashSet<>(userIdsToDelete);
-        existingEnrollments.stream()
-                .filter(e -> idsToDeleteSet.contains(e.userIdString())) // it's a string here!
-                .filter(e -> !e.isInactiveState())
-                .forEach(e -> deleteEnrollment(e));
+    private void invalidateCreatedUser(String userId) {
+        if (createdUserCache != null && isNumericId(userId)) {
+            createdUserCache.invalidate(Integer.parseInt(userId));
+        }
+    }
+
+    /** Writes the changed enrollment from the response through to the enrollment cache (if enabled). */
+    private void updateEnrollmentCache(CanvasResponse response, Object userId, Object courseId) {
+        if (enrollmentCache == null) {
+            return;
+        }
+        if (response.body == null) {
+            invalidateEnrollmentCache(userId, courseId, "empty response");
+            return;
+        }
+        try {
+            JSONObject json = new JSONObject(response.body);
+            int roleId = json.getInt("role_id");
+            if (roleId != configuration.getStudentRoleId() && roleId != configuration.getTeacherRoleId()) {
+                invalidateEnrollmentCache(userId, courseId, "unexpected role_id " + roleId);
+                return;
+            }
+            enrollmentCache.enrollmentChanged(json.getInt("id"), json.getInt("user_id"), json.getInt("course_id"),
+                    roleId == configuration.getStudentRoleId(), json.getString("enrollment_state"));
+        } catch (JSONException e) {
+            invalidateEnrollmentCache(userId, courseId, e.getMessage());
+        }
     }
 
-    private void deleteEnrollmentsFromUser(List<CourseEnrollment> existingEnrollments, List<Object> courseIdsToDelete) {
-        Set<Object> idsToDeleteSet = new HashSet<>(courseIdsToDelete);
-        existingEnrollments.stream()
-                .filter(e -> idsToDeleteSet.contains(e.courseIdString())) // it's a string here!
-                .filter(e -> !e.isInactiveState())
-                .forEach(e -> deleteEnrollment(e));
+    private void invalidateEnrollmentCache(Object userId, Object courseId, String reason) {
+        LOG.warn("Unexpected enrollment response, user {0} and course {1} removed from the enrollment cache: {2}",
+                userId, courseId, reason);
+        enrollmentCache.invalidate(userId, courseId);
+    }
+
+    /**
+     * Executes collected enrollment changes (create, reactivate and delete calls),
+     * concurrently if {@code enrollmentWriteParallelism} is above 1.
+     * All changes are attempted even if some of them fail. Single failure is rethrown as is,
+     * for more failures one exception with all the failures (the rest as suppressed) is thrown.
+     */
+    private void executeEnrollmentWrites(List<Runnable> writes) {
+        List<RuntimeException> failures = new ArrayList<>();
+        int parallelism = Math.min(configuration.getEnrollmentWriteParallelism(), writes.size());
+        if (parallelism <= 1) {
+            for (Runnable write : writes) {
+                try {
+                    write.run();
+                } catch (RuntimeException e) {
+                    failures.add(e);
+                }
+            }
+        } else {
+            ExecutorService executor = newDaemonThreadPool(parallelism, "canvas-enrollment-write-");
+            try {
+                List<Future<?>> futures = writes.stream()
+                        .<Future<?>>map(executor::submit)
+                        .toList();
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        failures.add(e.getCause() instanceof RuntimeException runtimeException
+                                ? runtimeException
+                                : new ConnectorException("Enrollment change failed: " + e.getCause(), e.getCause()));
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectorException("Interrupted while waiting for enrollment changes", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        }
+        if (failures.size() > 1) {
+            ConnectorException exception = new ConnectorException(failures.size() + " of " + writes.size()
+                    + " enrollment changes failed, first failure: " + failures.get(0).getMessage(), failures.get(0));
+            failures.subList(1, failures.size()).forEach(exception::addSuppressed);
+            throw exception;
+        }
     }
 
     private CanvasClient.ResponseHandler[] handleNotFoundAndNotSuccess(String uid, ObjectClass objectClass) {
@@ -1033,75 +1879,139 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
 
     /** Helper structure with course user and teacher ids. */
     private static class CourseEnrollments {
-        List<CourseEnrollment> studentEnrollments = new ArrayList<>();
-        List<CourseEnrollment> teacherEnrollments = new ArrayList<>();
+        EnrollmentTable studentEnrollments = new EnrollmentTable();
+        EnrollmentTable teacherEnrollments = new EnrollmentTable();
 
         public void addStudentEnrollment(JSONObject json) {
-            studentEnrollments.add(new CourseEnrollment(json));
+            addEnrollment(studentEnrollments, json);
         }
 
         public void addTeacherEnrollment(JSONObject json) {
-            teacherEnrollments.add(new CourseEnrollment(json));
+            addEnrollment(teacherEnrollments, json);
+        }
+
+        private void addEnrollment(EnrollmentTable enrollments, JSONObject json) {
+            enrollments.add(json.getInt("id"), json.getInt("user_id"), json.getInt("course_id"),
+                    json.getString("enrollment_state"));
         }
 
         public List<String> getCurrentStudentIds() {
-            return userIdsAsStrings(studentEnrollments);
+            return studentEnrollments.currentUserIds();
         }
 
         public List<String> getCurrentTeacherIds() {
-            return userIdsAsStrings(teacherEnrollments);
+            return teacherEnrollments.currentUserIds();
         }
 
         public List<String> getCurrentStudentCourseIds() {
-            return courseIdsAsStrings(studentEnrollments);
+            return studentEnrollments.currentCourseIds();
         }
 
         public List<String> getCurrentTeacherCourseIds() {
-            return courseIdsAsStrings(teacherEnrollments);
+            return teacherEnrollments.currentCourseIds();
         }
+    }
 
-        private List<String> userIdsAsStrings(List<CourseEnrollment> enrollments) {
-            return enrollments.stream()
-                    .filter(CourseEnrollment::isCurrent)
-                    .map(e -> e.userIdString())
-                    .toList();
+    /** Single enrollment to change, see {@link EnrollmentDiff}. */
+    private record CourseEnrollment(int enrollmentId, int userId, int courseId) {
+        public CourseEnrollment(EnrollmentTable enrollments, int row) {
+            this(enrollments.enrollmentId(row), enrollments.userId(row), enrollments.courseId(row));
         }
+    }
 
-        private List<String> courseIdsAsStrings(List<CourseEnrollment> enrollments) {
-            return enrollments.stream()
-                    .filter(CourseEnrollment::isCurrent)
-                    .map(e -> e.courseIdString())
-                    .toList();
-        }
+    /**
+     * Read options for object conversion - what to return and data fetched in bulk before the listing.
+     * Null value for the bulk data means the data is not available and per-object REST calls are used.
+     */
+    private static class ReadContext {
+        /** Enrollment IDs on users or courses are returned. */
+        boolean enrollments;
+        /** Login related attributes (enabled, authentication provider) are returned. */
+        boolean loginInfo;
+
+        Map<Integer, JSONObject> loginsByUserId;
+        /** Keyed by user IDs for user listing, by course IDs for course listing. */
+        EnrollmentIndex enrollmentIndex;
     }
 
-    private record CourseEnrollment(int enrollmentId, int userId, int courseId, String state) {
-        public CourseEnrollment(JSONObject json) {
-            this(json.getInt("id"), json.getInt("user_id"), json.getInt("course_id"), json.getString("enrollment_state"));
+    /**
+     * Inverted index of current enrollments, keyed by the ID of the listed objects:
+     * user ID -> student/teacher course IDs, or course ID -> student/teacher user IDs.
+     * Related IDs are stored in small int arrays, users typically have only a few enrollments.
+     */
+    private static class EnrollmentIndex {
+        private final Map<Integer, int[]> studentIds = new HashMap<>();
+        private final Map<Integer, int[]> teacherIds = new HashMap<>();
+
+        public void addStudent(int objectId, int relatedId) {
+            add(studentIds, objectId, relatedId);
+        }
+
+        public void addTeacher(int objectId, int relatedId) {
+            add(teacherIds, objectId, relatedId);
+        }
+
+        /** Course IDs for user index, user IDs for course index. */
+        public List<String> getStudentRelatedIds(int objectId) {
+            return asStrings(studentIds.get(objectId));
         }
 
-        // These two are default for state[]: https://canvas.instructure.com/doc/api/enrollments.html#method.enrollments_api.index
-        public boolean isCurrent() {
-            return state.equals(CREATED_ENROLLMENT_STATE) || state.equals(ENROLLMENT_STATE_INVITED);
+        /** Course IDs for user index, user IDs for course index. */
+        public List<String> getTeacherRelatedIds(int objectId) {
+            return asStrings(teacherIds.get(objectId));
         }
 
-        @SuppressWarnings("BooleanMethodIsAlwaysInverted")
-        public boolean isInactiveState() {
-            return state.equals(ENROLLMENT_STATE_INACTIVE)
-                    || state.equals(ENROLLMENT_STATE_COMPLETED);
+        public int objectCount() {
+            Set<Integer> objectIds = new HashSet<>(studentIds.keySet());
+            objectIds.addAll(teacherIds.keySet());
+            return objectIds.size();
         }
 
-        public String userIdString() {
-            return String.valueOf(userId);
+        private static void add(Map<Integer, int[]> index, int objectId, int relatedId) {
+            index.merge(objectId, new int[] { relatedId }, (ids, newIds) -> {
+                int[] result = Arrays.copyOf(ids, ids.length + 1);
+                result[ids.length] = newIds[0];
+                return result;
+            });
         }
 
-        public String courseIdString() {
-            return String.valueOf(courseId);
+        private static List<String> asStrings(int[] ids) {
+            if (ids == null) {
+                return List.of();
+            }
+            return Arrays.stream(ids).mapToObj(String::valueOf).toList();
         }
     }
 
-    private record Pagination(int page, int pageSize, int skip, int limit) {
-        public static final Pagination DEFAULT = new Pagination(1, 100, 0, LIST_MAX_ITEMS);
+    /**
+     * Page is Canvas page parameter - page number or bookmark.
+     * With cookie paging, the paged results cookie is Canvas next page (typically a bookmark, which is constant-cost
+     * for Canvas, unlike deep numeric pages) or, if the previous page was not used completely,
+     * the page and the number of its objects to skip separated by {@link #COOKIE_SKIP_SEPARATOR}.
+     */
+    record Pagination(String page, int pageSize, int skip, int limit, boolean cookiePaging) {
+        public static final int NO_LIMIT = Integer.MAX_VALUE;
+        public static final Pagination DEFAULT = new Pagination("1", 100, 0, NO_LIMIT, false);
+
+        static final String COOKIE_SKIP_SEPARATOR = "|";
+        static final Pattern COOKIE_PATTERN = Pattern.compile("([0-9A-Za-z:_-]+)(?:\\|(\\d+))?");
+
+        /** True if no paging was requested, which means listing of all objects. */
+        public boolean isFullListing() {
+            return limit == NO_LIMIT && skip == 0 && !cookiePaging;
+        }
+
+        /** Number of pages containing the skipped and limited objects, starting with the page. */
+        public int pageBudget() {
+            if (limit == NO_LIMIT) {
+                return Integer.MAX_VALUE;
+            }
+            return (int) Math.min(Integer.MAX_VALUE, ((long) skip + limit + pageSize - 1) / pageSize);
+        }
+
+        public static String cookie(String page, int skip) {
+            return skip > 0 ? page + COOKIE_SKIP_SEPARATOR + skip : page;
+        }
 
         public static Pagination from(OperationOptions options) {
             if (options == null) {
@@ -1109,17 +2019,30 @@ public class CanvasConnector implements Connector, TestOp, SchemaOp, SearchOp<Ca
             }
 
             Integer optPageSize = options.getPageSize();
-            Integer offset = options.getPagedResultsOffset();
-            // We only support pagination with offset >= 1, not with cookie:
-            if (optPageSize == null || optPageSize == 0 || offset == null || offset == 0) {
+            if (optPageSize == null || optPageSize == 0) {
                 return DEFAULT;
             }
-
-            int fixedOffset = offset - 1;
             int pageSize = optPageSize;
-            int zeroBasedPage = fixedOffset / pageSize; // more useful for calculation
-            int skip = fixedOffset - zeroBasedPage * pageSize;
-            return new Pagination(zeroBasedPage + 1, pageSize, skip, pageSize);
+
+            Integer offset = options.getPagedResultsOffset();
+            if (offset != null && offset > 0) {
+                int fixedOffset = offset - 1;
+                int zeroBasedPage = fixedOffset / pageSize; // more useful for calculation
+                int skip = fixedOffset - zeroBasedPage * pageSize;
+                return new Pagination(String.valueOf(zeroBasedPage + 1), pageSize, skip, pageSize, false);
+            }
+
+            String cookie = options.getPagedResultsCookie();
+            if (cookie == null) {
+                // first page of cookie paging
+                return new Pagination("1", pageSize, 0, pageSize, true);
+            }
+            Matcher matcher = COOKIE_PATTERN.matcher(cookie);
+            if (!matcher.matches()) {
+                throw new ConnectorException("Invalid paged results cookie: " + cookie);
+            }
+            int skip = matcher.group(2) != null ? Integer.parseInt(matcher.group(2)) : 0;
+            return new Pagination(matcher.group(1), pageSize, skip, pageSize, true);
         }
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.json.JSONObject;
+
+/**
+ * Course metadata (course JSON as returned by {@code GET /courses/:id}, without enrollments) cached by course ID.
+ * <p>
+ * The cache is JVM-wide per base URL and account ID, because connector instances are short-lived.
+ * Entries expire after the configured TTL, least recently used entries are evicted over the maximum size.
+ * The maximum size is taken from the configuration that created the cache, TTL from the configuration
+ * of the connector instance that puts the entry.
+ * Hits and misses are counted in {@link CanvasMetrics} if the metrics are enabled.
+ */
+public class CanvasCourseCache {
+
+    private static final Log LOG = Log.getLog(CanvasCourseCache.class);
+
+    static final String METRICS_NAME = "course";
+
+    private static final Map<String, CanvasCourseCache> CACHES = new ConcurrentHashMap<>();
+
+    /** Returns cache shared for the base URL and account or null if the cache is disabled. */
+    public static CanvasCourseCache get(CanvasConfiguration configuration) {
+        if (configuration.getCourseCacheTtlSeconds() <= 0) {
+            return null;
+        }
+        return CACHES.computeIfAbsent(configuration.getBaseUrl() + "|" + configuration.getAccountId(),
+                key -> new CanvasCourseCache(configuration.getCourseCacheMaxSize(), CanvasMetrics.get(configuration)));
+    }
+
+    private final int maxSize;
+    private final CanvasMetrics metrics; // null if disabled
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private CanvasCourseCache(int maxSize, CanvasMetrics metrics) {
+        this.maxSize = maxSize;
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > CanvasCourseCache.this.maxSize;
+            }
+        };
+    }
+
+    /** Returns cached course JSON or null if not cached or expired, returned JSON must not be modified. */
+    public JSONObject get(int courseId) {
+        JSONObject course;
+        synchronized (entries) {
+            Entry entry = entries.get(courseId);
+            if (entry != null && entry.expiresAtNanos - System.nanoTime() <= 0) {
+                entries.remove(courseId);
+                entry = null;
+            }
+            course = entry != null ? entry.course : null;
+        }
+        if (metrics != null) {
+            metrics.recordCacheLookup(METRICS_NAME, course != null);
+        }
+        return course;
+    }
+
+    /** Caches the course JSON (with {@code id}), the JSON must not be modified afterwards. */
+    public void put(JSONObject course, int ttlSeconds) {
+        Entry entry = new Entry(course, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (entries) {
+            entries.put(course.getInt("id"), entry);
+        }
+    }
+
+    public void invalidate(int courseId) {
+        synchronized (entries) {
+            entries.remove(courseId);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        LOG.ok("Course cache invalidated");
+    }
+
+    private record Entry(JSONObject course, long expiresAtNanos) {
+    }
+}
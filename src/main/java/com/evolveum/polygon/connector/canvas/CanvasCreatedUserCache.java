@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+
+/**
+ * Users just created by the connector, so the read that follows the creation (typical for midPoint)
+ * can be answered without REST calls - read-your-writes for a short time.
+ * <p>
+ * The cache is JVM-wide per base URL, account ID and role IDs, because the read is often done
+ * by another connector instance. Any change of the user done by the connector removes the user from the cache,
+ * changes done outside the connector are not visible until the entry expires.
+ * Hits and misses are counted in {@link CanvasMetrics} if the metrics are enabled.
+ */
+public class CanvasCreatedUserCache {
+
+    static final String METRICS_NAME = "created-user";
+
+    private static final int MAX_SIZE = 10000;
+
+    private static final Map<String, CanvasCreatedUserCache> CACHES = new ConcurrentHashMap<>();
+
+    /** Returns cache shared for the base URL, account and roles or null if the cache is disabled. */
+    public static CanvasCreatedUserCache get(CanvasConfiguration configuration) {
+        if (configuration.getCreatedUserCacheTtlSeconds() <= 0) {
+            return null;
+        }
+        return CACHES.computeIfAbsent(configuration.getBaseUrl() + "|" + configuration.getAccountId()
+                        + "|" + configuration.getStudentRoleId() + "|" + configuration.getTeacherRoleId(),
+                key -> new CanvasCreatedUserCache(CanvasMetrics.get(configuration)));
+    }
+
+    /**
+     * State of the created user: user JSON (like {@code GET /users/:id}), login JSON with {@code workflow_state}
+     * and {@code authentication_provider_id} and active enrollments. JSON objects must not be modified.
+     */
+    record CreatedUser(JSONObject user, JSONObject login, int[] studentCourseIds, int[] teacherCourseIds) {
+    }
+
+    private final CanvasMetrics metrics; // null if disabled
+    private final LinkedHashMap<Integer, Entry> entries;
+
+    private CanvasCreatedUserCache(CanvasMetrics metrics) {
+        this.metrics = metrics;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                return size() > MAX_SIZE;
+            }
+        };
+    }
+
+    /** Returns null if the user is not cached or expired. */
+    CreatedUser get(int userId) {
+        CreatedUser user;
+        synchronized (entries) {
+            Entry entry = entries.get(userId);
+            if (entry != null && entry.expiresAtNanos - System.nanoTime() <= 0) {
+                entries.remove(userId);
+                entry = null;
+            }
+            user = entry != null ? entry.user : null;
+        }
+        if (metrics != null) {
+            metrics.recordCacheLookup(METRICS_NAME, user != null);
+        }
+        return user;
+    }
+
+    void put(int userId, CreatedUser user, int ttlSeconds) {
+        Entry entry = new Entry(user, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (entries) {
+            entries.put(userId, entry);
+        }
+    }
+
+    void invalidate(int userId) {
+        synchronized (entries) {
+            entries.remove(userId);
+        }
+    }
+
+    private record Entry(CreatedUser user, long expiresAtNanos) {
+    }
+}
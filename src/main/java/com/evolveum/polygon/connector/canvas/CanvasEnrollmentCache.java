@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short-lived cache of student and teacher enrollments of users and courses, so a read following
+ * an update (typical for midPoint) doesn't list the enrollments again.
+ * <p>
+ * The cache is JVM-wide per base URL, account ID and role IDs, because connector instances are short-lived.
+ * Enrollment changes done by the connector are written through to the cached user and course (if cached),
+ * failed changes remove them from the cache. Changes done outside the connector are visible after the TTL.
+ * Least recently used entries are evicted when the total number of cached enrollments is over the limit.
+ * Hits and misses are counted in {@link CanvasMetrics} if the metrics are enabled.
+ */
+public class CanvasEnrollmentCache {
+
+    static final String METRICS_NAME = "enrollment";
+
+    /** Limit of all cached enrollments, each takes ~13 bytes (see {@link EnrollmentTable}). */
+    private static final int MAX_CACHED_ENROLLMENTS = 1_000_000;
+
+    private static final Map<String, CanvasEnrollmentCache> CACHES = new ConcurrentHashMap<>();
+
+    /** Returns cache shared for the base URL, account and roles or null if the cache is disabled. */
+    public static CanvasEnrollmentCache get(CanvasConfiguration configuration) {
+        if (configuration.getEnrollmentCacheTtlSeconds() <= 0) {
+            return null;
+        }
+        return CACHES.computeIfAbsent(configuration.getBaseUrl() + "|" + configuration.getAccountId()
+                        + "|" + configuration.getStudentRoleId() + "|" + configuration.getTeacherRoleId(),
+                key -> new CanvasEnrollmentCache(CanvasMetrics.get(configuration)));
+    }
+
+    public static String userKey(Object userId) {
+        return "user:" + userId;
+    }
+
+    public static String courseKey(Object courseId) {
+        return "course:" + courseId;
+    }
+
+    /**
+     * Cached enrollments, {@code allStates} is false if only current states (active, invited) were fetched.
+     * Returned tables are copies, these can be modified by the caller.
+     */
+    record Enrollments(EnrollmentTable students, EnrollmentTable teachers, boolean allStates) {
+    }
+
+    private final CanvasMetrics metrics; // null if disabled
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int cachedEnrollments;
+
+    private CanvasEnrollmentCache(CanvasMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /** Returns null if not cached, expired or all states are required, but only current states are cached. */
+    Enrollments get(String key, boolean allStatesRequired) {
+        Enrollments result = null;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.expiresAtNanos - System.nanoTime() <= 0) {
+                remove(key);
+                entry = null;
+            }
+            if (entry != null && (entry.allStates || !allStatesRequired)) {
+                result = new Enrollments(entry.students.copy(), entry.teachers.copy(), entry.allStates);
+            }
+        }
+        if (metrics != null) {
+            metrics.recordCacheLookup(METRICS_NAME, result != null);
+        }
+        return result;
+    }
+
+    /** Caches copies of the enrollment tables. */
+    void put(String key, EnrollmentTable students, EnrollmentTable teachers, boolean allStates, int ttlSeconds) {
+        Entry entry = new Entry(students.copy(), teachers.copy(), allStates,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (entries) {
+            remove(key);
+            entries.put(key, entry);
+            cachedEnrollments += entry.size();
+            evictOverLimit();
+        }
+    }
+
+    /** Writes the new state of the enrollment (created or changed by the connector) to the cached user and course. */
+    void enrollmentChanged(int enrollmentId, int userId, int courseId, boolean student, String state) {
+        synchronized (entries) {
+            for (String key : new String[] { userKey(userId), courseKey(courseId) }) {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    EnrollmentTable table = student ? entry.students : entry.teachers;
+                    int sizeBefore = table.size();
+                    table.addOrUpdate(enrollmentId, userId, courseId, state);
+                    cachedEnrollments += table.size() - sizeBefore;
+                }
+            }
+            evictOverLimit();
+        }
+    }
+
+    /** Removes the cached user and course, e.g. when the enrollment change failed and the result is unknown. */
+    void invalidate(Object userId, Object courseId) {
+        synchronized (entries) {
+            remove(userKey(userId));
+            remove(courseKey(courseId));
+        }
+    }
+
+    /** Removes the cached user and all cached courses with enrollments of the user. */
+    void invalidateUser(int userId) {
+        synchronized (entries) {
+            remove(userKey(userId));
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next().getValue();
+                if (entry.students.containsUser(userId) || entry.teachers.containsUser(userId)) {
+                    cachedEnrollments -= entry.size();
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            cachedEnrollments -= removed.size();
+        }
+    }
+
+    private void evictOverLimit() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedEnrollments > MAX_CACHED_ENROLLMENTS && iterator.hasNext()) {
+            cachedEnrollments -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    private record Entry(EnrollmentTable students, EnrollmentTable teachers, boolean allStates, long expiresAtNanos) {
+        int size() {
+            return students.size() + teachers.size();
+        }
+    }
+}
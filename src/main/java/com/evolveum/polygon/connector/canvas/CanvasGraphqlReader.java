@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Reads data for multiple objects with a single query to Canvas GraphQL API ({@code /api/graphql}).
+ * <p>
+ * Each object is queried with its own aliased {@code legacyNode} field, e.g.:
+ * <pre>
+ * query {
+ *   u123: legacyNode(_id: "123", type: User) {
+ *     ... on User { enrollments { state role { _id } course { _id } } }
+ *   }
+ *   ...
+ * }
+ * </pre>
+ * See <a href="https://canvas.instructure.com/doc/api/file.graphql.html">Canvas GraphQL docs</a>.
+ * Login details (state, authentication provider) are not available in GraphQL, these are still read with REST.
+ * The root account of the enrolled course is not available either, the caller has to check the courses.
+ */
+public class CanvasGraphqlReader {
+
+    private static final Log LOG = Log.getLog(CanvasGraphqlReader.class);
+
+    private static final String USER_ENROLLMENTS_FIELDS = "enrollments { state role { _id } course { _id } }";
+
+    private final CanvasClient client;
+
+    public CanvasGraphqlReader(CanvasClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Passes each enrollment (JSON with {@code state}, {@code role._id} and {@code course._id}) of the users
+     * to the consumer together with the user ID. Users that don't exist are ignored.
+     */
+    public void forEachUserEnrollment(Collection<Integer> userIds, BiConsumer<Integer, JSONObject> enrollmentConsumer) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        StringBuilder query = new StringBuilder("query CanvasUserEnrollments {");
+        for (Integer userId : userIds) {
+            query.append("\n  u").append(userId)
+                    .append(": legacyNode(_id: \"").append(userId).append("\", type: User) { ... on User { ")
+                    .append(USER_ENROLLMENTS_FIELDS)
+                    .append(" } }");
+        }
+        query.append("\n}");
+
+        JSONObject data = execute(query.toString());
+        for (Integer userId : userIds) {
+            JSONObject user = data.optJSONObject("u" + userId);
+            JSONArray enrollments = user != null ? user.optJSONArray("enrollments") : null;
+            if (enrollments == null) {
+                continue;
+            }
+            for (int i = 0; i < enrollments.length(); i++) {
+                enrollmentConsumer.accept(userId, enrollments.getJSONObject(i));
+            }
+        }
+    }
+
+    /** Returns {@code data} of the response, throws if there are any errors. */
+    private JSONObject execute(String query) {
+        JSONObject response = new JSONObject(client.postGraphql(query).body);
+        JSONArray errors = response.optJSONArray("errors");
+        if (errors != null && errors.length() > 0) {
+            throw new ConnectorException("GraphQL query failed: " + errors);
+        }
+        JSONObject data = response.optJSONObject("data");
+        if (data == null) {
+            LOG.warn("GraphQL response without data: {0}", response);
+            return new JSONObject();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * JVM-wide registry of pooled HTTP clients.
+ * <p>
+ * Connector is not poolable, so midPoint creates and disposes connector instances all the time.
+ * Creating a new HTTP client for each of them means new TCP+TLS handshake for almost every operation.
+ * Instead, clients with pooling connection manager are shared by all connector instances with the same
+ * base URL, token and connection settings, idle connections are evicted in the background.
+ * <p>
+ * Clients are reference counted, each {@link #acquire} must be followed by {@link #release}.
+ * Unused client is kept for the connection idle timeout, so the next connector instance can reuse it,
+ * and closed (with its evictor thread) afterwards by a background timer, even if its base URL is never used again.
+ * Unused clients superseded by a client with different token or settings for the same base URL are closed
+ * right away.
+ */
+public class CanvasHttpClients {
+
+    private static final Log LOG = Log.getLog(CanvasHttpClients.class);
+
+    /** Guarded by itself. */
+    private static final Map<String, SharedClient> CLIENTS = new HashMap<>();
+
+    /** Closes clients that stayed unused for their idle timeout, one daemon thread for the whole JVM. */
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "canvas-http-client-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CanvasHttpClients() {
+    }
+
+    /**
+     * Client without the Canvas token, used for downloads redirected outside of Canvas (e.g. to file storage).
+     * Timeouts are set on each request, see {@link #requestConfig}.
+     */
+    private static class UnauthenticatedClientHolder {
+        private static final CloseableHttpClient CLIENT = HttpClientBuilder.create()
+                .evictExpiredConnections()
+                .evictIdleConnections(30L, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static CloseableHttpClient getUnauthenticated() {
+        return UnauthenticatedClientHolder.CLIENT;
+    }
+
+    /**
+     * Returns shared HTTP client for the configuration, creating it when needed.
+     * The client must be returned by {@link #release} when not needed anymore.
+     */
+    public static SharedClient acquire(CanvasConfiguration configuration) {
+        String token = tokenString(configuration);
+        String key = configuration.getBaseUrl()
+                + "|" + tokenHash(token)
+                + "|" + configuration.getMaxConnectionsPerRoute()
+                + "|" + configuration.getConnectionKeepAliveSeconds()
+                + "|" + configuration.getConnectionIdleTimeoutSeconds()
+                + "|" + configuration.getConnectTimeoutSeconds()
+                + "|" + configuration.getSocketTimeoutSeconds()
+                + "|" + configuration.getConnectionRequestTimeoutSeconds();
+        synchronized (CLIENTS) {
+            closeUnused(configuration.getBaseUrl(), key);
+            SharedClient sharedClient = CLIENTS.computeIfAbsent(key, k -> new SharedClient(k,
+                    configuration.getBaseUrl(), createClient(configuration, token),
+                    TimeUnit.SECONDS.toNanos(configuration.getConnectionIdleTimeoutSeconds())));
+            sharedClient.references++;
+            return sharedClient;
+        }
+    }
+
+    /**
+     * Returns the client acquired by {@link #acquire}, it is closed when not used by anyone else
+     * for its idle timeout.
+     */
+    public static void release(SharedClient sharedClient) {
+        synchronized (CLIENTS) {
+            sharedClient.references--;
+            sharedClient.releasedAtNanos = System.nanoTime();
+            if (sharedClient.references == 0) {
+                // if it is acquired and released again meanwhile, this check does not close it
+                CLOSER.schedule(CanvasHttpClients::closeExpired, sharedClient.idleTimeoutNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private static void closeExpired() {
+        synchronized (CLIENTS) {
+            closeUnused(null, null);
+        }
+    }
+
+    /**
+     * Closes clients not used by any connector instance which are idle for at least their idle timeout
+     * or are superseded by the client with the provided key for the same base URL (e.g. after the token change).
+     * Only idle clients are closed if base URL is null.
+     */
+    private static void closeUnused(String baseUrl, String currentKey) {
+        long now = System.nanoTime();
+        Iterator<SharedClient> iterator = CLIENTS.values().iterator();
+        while (iterator.hasNext()) {
+            SharedClient sharedClient = iterator.next();
+            if (sharedClient.references > 0 || sharedClient.key.equals(currentKey)) {
+                continue;
+            }
+            if (sharedClient.baseUrl.equals(baseUrl) || now - sharedClient.releasedAtNanos >= sharedClient.idleTimeoutNanos) {
+                iterator.remove();
+                sharedClient.closed = true;
+                LOG.ok("Closing unused pooled HTTP client for {0}", sharedClient.baseUrl);
+                try {
+                    sharedClient.client.close();
+                } catch (IOException e) {
+                    LOG.warn(e, "Closing of pooled HTTP client for {0} failed", sharedClient.baseUrl);
+                }
+            }
+        }
+    }
+
+    /** Request config with the configured timeouts, used as default by the shared clients. */
+    static RequestConfig requestConfig(CanvasConfiguration configuration) {
+        return RequestConfig.custom()
+                .setConnectTimeout((int) TimeUnit.SECONDS.toMillis(configuration.getConnectTimeoutSeconds()))
+                .setSocketTimeout((int) TimeUnit.SECONDS.toMillis(configuration.getSocketTimeoutSeconds()))
+                .setConnectionRequestTimeout(
+                        (int) TimeUnit.SECONDS.toMillis(configuration.getConnectionRequestTimeoutSeconds()))
+                .build();
+    }
+
+    private static CloseableHttpClient createClient(CanvasConfiguration configuration, String token) {
+        LOG.ok("Creating pooled HTTP client for {0}, max connections: {1}",
+                configuration.getBaseUrl(), configuration.getMaxConnectionsPerRoute());
+
+        // There is just one route (base URL) for the client, so max total is the same as max per route.
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(configuration.getMaxConnectionsPerRoute());
+        connectionManager.setDefaultMaxPerRoute(configuration.getMaxConnectionsPerRoute());
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig(configuration))
+                .setKeepAliveStrategy(keepAliveStrategy(configuration.getConnectionKeepAliveSeconds()))
+                .evictExpiredConnections()
+                .evictIdleConnections((long) configuration.getConnectionIdleTimeoutSeconds(), TimeUnit.SECONDS)
+                .setDefaultHeaders(List.of(
+                        new BasicHeader(HttpHeaders.AUTHORIZATION, "Bearer " + token)))
+                .build();
+    }
+
+    /** Pooled client shared by connector instances, see {@link #acquire}. */
+    public static class SharedClient {
+
+        private final String key;
+        private final String baseUrl;
+        private final CloseableHttpClient client;
+        private final long idleTimeoutNanos;
+
+        // guarded by CLIENTS
+        private int references;
+        private long releasedAtNanos;
+        private boolean closed;
+
+        private SharedClient(String key, String baseUrl, CloseableHttpClient client, long idleTimeoutNanos) {
+            this.key = key;
+            this.baseUrl = baseUrl;
+            this.client = client;
+            this.idleTimeoutNanos = idleTimeoutNanos;
+        }
+
+        public CloseableHttpClient client() {
+            return client;
+        }
+
+        /** True if the client was closed because it was not used, see {@link CanvasHttpClients}. */
+        boolean isClosed() {
+            synchronized (CLIENTS) {
+                return closed;
+            }
+        }
+    }
+
+    /**
+     * Keep-Alive timeout sent by the server is honored, but not longer than the configured maximum.
+     * If the server does not send any, the configured maximum is used.
+     */
+    private static ConnectionKeepAliveStrategy keepAliveStrategy(int maxKeepAliveSeconds) {
+        long maxKeepAliveMillis = TimeUnit.SECONDS.toMillis(maxKeepAliveSeconds);
+        return (response, context) -> {
+            long serverKeepAliveMillis =
+                    DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return serverKeepAliveMillis > 0
+                    ? Math.min(serverKeepAliveMillis, maxKeepAliveMillis)
+                    : maxKeepAliveMillis;
+        };
+    }
+
+    private static String tokenString(CanvasConfiguration configuration) {
+        StringBuilder token = new StringBuilder();
+        if (configuration.getAuthToken() != null) {
+            configuration.getAuthToken().access(chars -> token.append(chars));
+        }
+        return token.toString();
+    }
+
+    /** Token hash for the configuration, usable as a key for JVM-wide structures shared per token. */
+    static String tokenHash(CanvasConfiguration configuration) {
+        return tokenHash(tokenString(configuration));
+    }
+
+    /** Token is part of the registry key, but we don't want to keep it in plain text there. */
+    static String tokenHash(String token) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(token.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
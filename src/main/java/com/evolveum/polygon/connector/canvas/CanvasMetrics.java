@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.identityconnectors.common.logging.Log;
+
+/**
+ * Call counters and latency histograms of Canvas REST calls, per endpoint template and per ConnId operation,
+ * and hit/miss counters of the connector caches.
+ * <p>
+ * Metrics are JVM-wide per base URL (connector instances are short-lived) and published as JMX MBean
+ * {@code com.evolveum.polygon.connector.canvas:type=CanvasMetrics,name="<base URL>"}.
+ * Request URLs are normalized to templates, e.g. {@code /api/v1/users/123/logins} is counted
+ * as {@code GET /users/{id}/logins}, so the number of keys stays small.
+ */
+public class CanvasMetrics implements CanvasMetricsMBean {
+
+    private static final Log LOG = Log.getLog(CanvasMetrics.class);
+
+    private static final String OBJECT_NAME_PREFIX = "com.evolveum.polygon.connector.canvas:type=CanvasMetrics,name=";
+
+    /** Status used for requests that failed without a response. */
+    public static final int STATUS_IO_ERROR = 0;
+
+    private static final Map<String, CanvasMetrics> METRICS = new ConcurrentHashMap<>();
+
+    /** Returns metrics shared for the base URL or null if the metrics are disabled. */
+    public static CanvasMetrics get(CanvasConfiguration configuration) {
+        if (!configuration.isMetricsEnabled()) {
+            return null;
+        }
+        return METRICS.computeIfAbsent(configuration.getBaseUrl(), CanvasMetrics::createAndRegister);
+    }
+
+    private static CanvasMetrics createAndRegister(String baseUrl) {
+        CanvasMetrics metrics = new CanvasMetrics(baseUrl);
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(baseUrl));
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+            }
+            LOG.ok("Canvas metrics registered as {0}", objectName);
+        } catch (JMException e) {
+            // metrics are still collected, just not visible over JMX
+            LOG.warn(e, "Couldn't register Canvas metrics MBean for {0}", baseUrl);
+        }
+        return metrics;
+    }
+
+    private final String baseUrl;
+    private final Map<String, Stats> endpointStats = new ConcurrentHashMap<>();
+    private final Map<String, Stats> operationStats = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> operationInvocations = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> cacheHits = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+
+    private CanvasMetrics(String baseUrl) {
+        this.baseUrl = baseUrl;
+    }
+
+    /** Counts the invocation of ConnId operation, requests are counted by {@link #recordRequest}. */
+    public void recordOperation(String operation) {
+        operationInvocations.computeIfAbsent(operation, k -> new LongAdder()).increment();
+    }
+
+    /**
+     * Records a finished request, status is {@link #STATUS_IO_ERROR} if there was no response.
+     * Operation can be null if the request is not done for any ConnId operation.
+     */
+    public void recordRequest(String operation, String method, URI uri, int status, long bytes, long elapsedNanos) {
+        String template = method + " " + endpointTemplate(uri);
+        endpointStats.computeIfAbsent(template, k -> new Stats()).record(status, bytes, elapsedNanos);
+        operationStats.computeIfAbsent(operation != null ? operation : "-", k -> new Stats())
+                .record(status, bytes, elapsedNanos);
+    }
+
+    /** Counts a lookup in the named cache (e.g. {@code course}). */
+    public void recordCacheLookup(String cache, boolean hit) {
+        (hit ? cacheHits : cacheMisses).computeIfAbsent(cache, k -> new LongAdder()).increment();
+    }
+
+    /** Path after API prefix with IDs (numeric or e.g. {@code sis_login_id:...}) replaced by {@code {id}}. */
+    static String endpointTemplate(URI uri) {
+        String path = uri.getRawPath();
+        int apiIndex = path.indexOf("/api/v1/");
+        if (apiIndex >= 0) {
+            path = path.substring(apiIndex + "/api/v1".length());
+        }
+        StringBuilder template = new StringBuilder();
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            template.append('/');
+            if (segment.chars().allMatch(Character::isDigit) || segment.contains(":") || segment.contains("%3A")) {
+                template.append("{id}");
+            } else {
+                template.append(segment);
+            }
+        }
+        return template.toString();
+    }
+
+    @Override
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    @Override
+    public long getTotalRequests() {
+        return endpointStats.values().stream().mapToLong(s -> s.calls.sum()).sum();
+    }
+
+    @Override
+    public String[] getEndpointSummaries() {
+        return new TreeMap<>(endpointStats).entrySet().stream()
+                .map(e -> e.getKey() + " calls=" + e.getValue().summary())
+                .toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getOperationSummaries() {
+        Map<String, String> summaries = new TreeMap<>();
+        operationStats.forEach((operation, stats) -> summaries.put(operation,
+                operation + " invocations=" + invocations(operation) + " requests=" + stats.summary()));
+        operationInvocations.forEach((operation, count) -> summaries.putIfAbsent(operation,
+                operation + " invocations=" + count.sum() + " requests=0"));
+        return summaries.values().toArray(String[]::new);
+    }
+
+    @Override
+    public String[] getCacheSummaries() {
+        Map<String, String> summaries = new TreeMap<>();
+        cacheHits.keySet().forEach(cache -> summaries.put(cache, cacheSummary(cache)));
+        cacheMisses.keySet().forEach(cache -> summaries.put(cache, cacheSummary(cache)));
+        return summaries.values().toArray(String[]::new);
+    }
+
+    private String cacheSummary(String cache) {
+        LongAdder hits = cacheHits.get(cache);
+        LongAdder misses = cacheMisses.get(cache);
+        return cache + " hits=" + (hits != null ? hits.sum() : 0) + " misses=" + (misses != null ? misses.sum() : 0);
+    }
+
+    private long invocations(String operation) {
+        LongAdder count = operationInvocations.get(operation);
+        return count != null ? count.sum() : 0;
+    }
+
+    @Override
+    public void reset() {
+        endpointStats.clear();
+        operationStats.clear();
+        operationInvocations.clear();
+        cacheHits.clear();
+        cacheMisses.clear();
+    }
+
+    private static class Stats {
+
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final Map<Integer, LongAdder> statusCounts = new ConcurrentHashMap<>();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private void record(int status, long responseBytes, long elapsedNanos) {
+            calls.increment();
+            bytes.add(responseBytes);
+            statusCounts.computeIfAbsent(status, k -> new LongAdder()).increment();
+            latency.record(elapsedNanos);
+        }
+
+        /** Starts with the call count, so it can follow "calls=" or "requests=". */
+        private String summary() {
+            StringBuilder sb = new StringBuilder().append(calls.sum()).append(" status[");
+            new TreeMap<>(statusCounts).forEach((status, count) -> sb
+                    .append(sb.charAt(sb.length() - 1) == '[' ? "" : ",")
+                    .append(status == STATUS_IO_ERROR ? "io-error" : status)
+                    .append('=').append(count.sum()));
+            return sb.append("] bytes=").append(bytes.sum())
+                    .append(" p50=").append(latency.percentileMillis(0.5))
+                    .append(" p95=").append(latency.percentileMillis(0.95))
+                    .append(" p99=").append(latency.percentileMillis(0.99))
+                    .toString();
+        }
+    }
+
+    /**
+     * Lock-free histogram with exponential buckets (4 per doubling, ~19% resolution) from 1 ms to ~2 minutes.
+     * Percentile is reported as the upper bound of the bucket containing it.
+     */
+    static class LatencyHistogram {
+
+        private static final int BUCKETS_PER_DOUBLING = 4;
+        private static final int BUCKET_COUNT = 17 * BUCKETS_PER_DOUBLING + 1; // last one is the overflow
+        private static final long[] UPPER_BOUNDS_MICROS = new long[BUCKET_COUNT];
+
+        static {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                UPPER_BOUNDS_MICROS[i] = Math.round(1000 * Math.pow(2, (double) i / BUCKETS_PER_DOUBLING));
+            }
+        }
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+        void record(long elapsedNanos) {
+            long micros = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+            int bucket = 0;
+            while (bucket < BUCKET_COUNT - 1 && micros > UPPER_BOUNDS_MICROS[bucket]) {
+                bucket++;
+            }
+            counts.incrementAndGet(bucket);
+        }
+
+        /** Returns 0 if nothing was recorded. */
+        double percentileMillis(double percentile) {
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * percentile);
+            long cumulative = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                cumulative += counts.get(i);
+                if (cumulative >= threshold) {
+                    return UPPER_BOUNDS_MICROS[i] / 1000.0;
+                }
+            }
+            return UPPER_BOUNDS_MICROS[BUCKET_COUNT - 1] / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+/**
+ * JMX view of {@link CanvasMetrics}.
+ * Each summary line describes one endpoint template or ConnId operation,
+ * latencies are in milliseconds.
+ */
+public interface CanvasMetricsMBean {
+
+    String getBaseUrl();
+
+    long getTotalRequests();
+
+    /** Lines like {@code GET /courses/{id}/enrollments calls=120 status[200=118,404=2] bytes=... p50=... p95=... p99=...}. */
+    String[] getEndpointSummaries();
+
+    /** Lines like {@code executeQuery invocations=1 requests=245 ... p50=... p95=... p99=...}. */
+    String[] getOperationSummaries();
+
+    /** Lines like {@code course hits=950 misses=50}. */
+    String[] getCacheSummaries();
+
+    void reset();
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.json.JSONObject;
+
+/**
+ * Iterates over pages of a paginated Canvas listing, use {@link #next()} or {@link #nextEach} until it returns null.
+ * <p>
+ * With prefetch depth 0, each page is requested only when {@link #next()} is called.
+ * With higher prefetch depth, a background thread requests the next page as soon as the previous
+ * page response (with the Link header) is available, so network latency overlaps with the processing
+ * of the current page.
+ * At most prefetch depth pages are requested ahead of the page being processed, so memory stays flat.
+ * <p>
+ * With fan-out concurrency above 1 and numeric pagination (Canvas sends {@code rel=last} link with the page count,
+ * which it does not do for bookmarks), the pages after the first one are requested concurrently.
+ * At most fan-out concurrency pages are requested (or waiting to be processed) at once and pages are still
+ * returned in order. Prefetch is used only when the fan-out is not possible.
+ * <p>
+ * With a page budget (the number of pages the consumer needs, e.g. for a paged search), pages after the budget
+ * are not requested ahead by prefetch or fan-out. If the consumer asks for them anyway, they are requested
+ * one by one when {@link #next()} is called.
+ * <p>
+ * Always close the pager, this stops the background requests when the consumer does not need more pages.
+ */
+public class CanvasPager implements AutoCloseable {
+
+    private static final Log LOG = Log.getLog(CanvasPager.class);
+
+    /** Marks the end of the listing in the queue. */
+    private static final Object END = new Object();
+
+    private final CanvasClient client;
+    private final String apiRequest;
+    private final int prefetchDepth;
+    private final boolean streaming;
+    private final int fanOutConcurrency;
+
+    /** Pages that can still be requested ahead, decremented by each fetched page. */
+    private int remainingPageBudget;
+
+    private String page;
+    private String pageSize;
+
+    // used only for prefetch
+    private BlockingQueue<Object> fetchedPages;
+    private Semaphore fetchPermits;
+    private Thread prefetchThread;
+    private volatile boolean closed;
+
+    // used only for fan-out
+    private Deque<Future<CanvasResponse>> fanOutPages;
+    private ExecutorService fanOutExecutor;
+    private int nextFanOutPage;
+    private int lastFanOutPage;
+
+    /**
+     * API request can contain query parameters, page parameters are appended to it.
+     * Page budget is the number of pages the consumer needs or {@link Integer#MAX_VALUE} for all pages.
+     */
+    public CanvasPager(CanvasClient client, String apiRequest, String page, String pageSize, int pageBudget,
+            int prefetchDepth, boolean streaming, int fanOutConcurrency) {
+        this.client = client;
+        this.apiRequest = apiRequest + (apiRequest.contains("?") ? "&" : "?");
+        this.page = page;
+        this.pageSize = pageSize;
+        this.remainingPageBudget = pageBudget;
+        this.prefetchDepth = prefetchDepth;
+        this.streaming = streaming;
+        this.fanOutConcurrency = fanOutConcurrency;
+    }
+
+    /**
+     * Passes elements of the next page to the element handler, which can return false to stop the processing.
+     * Returns the page response (body is null if streamed) or null if there are no more pages.
+     * <p>
+     * With streaming enabled, elements of pages requested by this call are parsed directly from the response stream,
+     * elements of pages requested ahead (prefetch or fan-out) are parsed one by one from the response body.
+     * In both cases the whole JSON array is never created.
+     * <p>
+     * Use this only for element handlers without REST calls, see {@link #nextEach(Predicate, boolean)}.
+     */
+    public CanvasResponse nextEach(Predicate<JSONObject> elementHandler) {
+        return nextEach(elementHandler, true);
+    }
+
+    /**
+     * Like {@link #nextEach(Predicate)}, but streaming can be disallowed by the caller.
+     * This is necessary when the element handler makes REST calls, because the streamed response keeps
+     * its pooled connection while the handler runs, so the nested requests could wait for a free connection forever.
+     * The page is read whole before its elements are passed to the handler then.
+     */
+    public CanvasResponse nextEach(Predicate<JSONObject> elementHandler, boolean streamingAllowed) {
+        if (streaming && streamingAllowed && fanOutPages == null && prefetchThread == null) {
+            if (page == null) {
+                return null;
+            }
+            CanvasResponse response = client.getEach(pageRequest(), elementHandler);
+            response.page = page;
+            page = response.nextPage;
+            pageSize = response.pageSize;
+            remainingPageBudget--;
+            afterPageFetched(response);
+            return response;
+        }
+
+        CanvasResponse response = next();
+        if (response != null) {
+            response.forEachElement(elementHandler);
+        }
+        return response;
+    }
+
+    /** Returns next page response or null if there are no more pages. */
+    public CanvasResponse next() {
+        if (fanOutPages != null) {
+            return nextFanOutPage();
+        }
+        if (prefetchThread != null) {
+            return nextPrefetchedPage();
+        }
+
+        CanvasResponse response = fetchNextPage();
+        afterPageFetched(response);
+        return response;
+    }
+
+    /** Called for the pages fetched in the consumer thread, starts fan-out or prefetch for the rest if configured. */
+    private void afterPageFetched(CanvasResponse response) {
+        if (response == null || page == null || remainingPageBudget <= 0) {
+            return;
+        }
+        if (fanOutConcurrency > 1 && response.hasNumericPagination()) {
+            int firstPage = Integer.parseInt(response.nextPage);
+            int lastPage = Integer.parseInt(response.lastPage);
+            startFanOut(firstPage, (int) Math.min(lastPage, (long) firstPage + remainingPageBudget - 1));
+        } else if (prefetchDepth > 0) {
+            startPrefetch();
+        }
+    }
+
+    private CanvasResponse fetchNextPage() {
+        if (page == null) {
+            return null;
+        }
+        CanvasResponse response = client.get(pageRequest());
+        response.page = page;
+        page = response.nextPage;
+        pageSize = response.pageSize;
+        remainingPageBudget--;
+        return response;
+    }
+
+    private String pageRequest() {
+        return apiRequest + "page=" + page + "&per_page=" + pageSize;
+    }
+
+    private void startFanOut(int firstPage, int lastPage) {
+        LOG.ok("Fetching pages {0} to {1} of {2} with concurrency {3}", firstPage, lastPage, apiRequest, fanOutConcurrency);
+        nextFanOutPage = firstPage;
+        lastFanOutPage = lastPage;
+        page = null; // the rest is fetched by fan-out
+        fanOutPages = new ArrayDeque<>();
+        AtomicInteger threadCounter = new AtomicInteger();
+        fanOutExecutor = Executors.newFixedThreadPool(fanOutConcurrency, runnable -> {
+            Thread thread = new Thread(runnable, "canvas-pager-fan-out-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        submitFanOutPages();
+    }
+
+    private void submitFanOutPages() {
+        while (fanOutPages.size() < fanOutConcurrency && nextFanOutPage <= lastFanOutPage) {
+            String fanOutPage = String.valueOf(nextFanOutPage);
+            String request = apiRequest + "page=" + fanOutPage + "&per_page=" + pageSize;
+            fanOutPages.add(fanOutExecutor.submit(() -> {
+                CanvasResponse response = client.get(request);
+                response.page = fanOutPage;
+                return response;
+            }));
+            nextFanOutPage++;
+        }
+    }
+
+    private CanvasResponse nextFanOutPage() {
+        Future<CanvasResponse> future = fanOutPages.poll();
+        if (future == null) {
+            return null;
+        }
+        CanvasResponse response;
+        try {
+            response = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the next page", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new ConnectorException("Page request failed: " + e.getCause(), e.getCause());
+        }
+        submitFanOutPages();
+
+        if (fanOutPages.isEmpty() && response.nextPage != null) {
+            // Page budget was used up, or objects were added during the listing and the last page
+            // is not the last anymore, continue sequentially.
+            LOG.ok("Page {0} of {1} is not the last one, continuing sequentially", lastFanOutPage, apiRequest);
+            stopFanOut();
+            page = response.nextPage;
+            pageSize = response.pageSize;
+        }
+        return response;
+    }
+
+    private void stopFanOut() {
+        fanOutPages.forEach(f -> f.cancel(true));
+        fanOutPages = null;
+        fanOutExecutor.shutdownNow();
+        fanOutExecutor = null;
+    }
+
+    private CanvasResponse nextPrefetchedPage() {
+        Object item;
+        try {
+            item = fetchedPages.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for the next page", e);
+        }
+        if (item == END) {
+            if (page != null && !closed) {
+                // Prefetch stopped after the page budget (or failed), the rest is fetched sequentially.
+                // Page is not changed by the prefetch thread anymore, END is added after its last change.
+                LOG.ok("Prefetch of {0} stopped before page {1}, continuing sequentially", apiRequest, page);
+                prefetchThread = null;
+                return fetchNextPage();
+            }
+            fetchedPages.add(END); // any other next() call returns null as well
+            return null;
+        }
+        fetchPermits.release();
+        if (item instanceof RuntimeException) {
+            throw (RuntimeException) item;
+        }
+        return (CanvasResponse) item;
+    }
+
+    private void startPrefetch() {
+        fetchedPages = new LinkedBlockingQueue<>();
+        // One page is the one the consumer waits for, the rest is fetched ahead.
+        fetchPermits = new Semaphore(prefetchDepth + 1);
+        prefetchThread = new Thread(this::prefetchLoop, "canvas-pager");
+        prefetchThread.setDaemon(true);
+        prefetchThread.start();
+    }
+
+    private void prefetchLoop() {
+        try {
+            while (!closed && remainingPageBudget > 0) {
+                fetchPermits.acquire();
+                CanvasResponse response = fetchNextPage();
+                if (response == null) {
+                    break;
+                }
+                fetchedPages.add(response);
+            }
+        } catch (InterruptedException e) {
+            LOG.ok("Page prefetch interrupted for {0}", apiRequest);
+        } catch (RuntimeException e) {
+            fetchedPages.add(e); // rethrown to the consumer
+        }
+        fetchedPages.add(END);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (prefetchThread != null) {
+            prefetchThread.interrupt();
+        }
+        if (fanOutPages != null) {
+            stopFanOut();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.OperationTimeoutException;
+import org.json.JSONObject;
+
+/**
+ * Canvas provisioning report (account report {@code provisioning_csv}) downloaded to a temporary file.
+ * <p>
+ * Report is started with {@code POST /accounts/:account_id/reports/provisioning_csv}, polled with
+ * {@code GET /accounts/:account_id/reports/provisioning_csv/:report_id} until it is complete, and then its attachment
+ * is downloaded - a ZIP with {@code users.csv}, {@code courses.csv}, ... if more CSV types are requested,
+ * plain CSV otherwise.
+ * See <a href="https://canvas.instructure.com/doc/api/account_reports.html">account reports</a>
+ * and <a href="https://canvas.instructure.com/doc/api/file.provisioning_csv.html">provisioning CSV format</a>.
+ * <p>
+ * Always close the report, this deletes the temporary file.
+ */
+public class CanvasProvisioningReport implements AutoCloseable {
+
+    private static final Log LOG = Log.getLog(CanvasProvisioningReport.class);
+
+    public static final String USERS = "users";
+    public static final String COURSES = "courses";
+    public static final String ENROLLMENTS = "enrollments";
+
+    private static final String REPORT_STATUS_COMPLETE = "complete";
+    private static final Set<String> REPORT_STATUSES_FAILED = Set.of("error", "aborted", "deleted");
+
+    private final Path file;
+    private final List<String> csvTypes;
+    private final ZipFile zipFile; // null if the report is a single CSV
+
+    private CanvasProvisioningReport(Path file, List<String> csvTypes) throws IOException {
+        this.file = file;
+        this.csvTypes = csvTypes;
+        this.zipFile = csvTypes.size() > 1 ? new ZipFile(file.toFile()) : null;
+    }
+
+    /**
+     * Starts the report with the specified CSV types (e.g. {@link #USERS}), waits for it and downloads it.
+     * Fails with {@link OperationTimeoutException} if the report is not complete in time.
+     */
+    public static CanvasProvisioningReport run(CanvasClient client, int accountId,
+            long pollIntervalMillis, long timeoutSeconds, List<String> csvTypes) {
+        String reportsApi = "/accounts/" + accountId + "/reports/provisioning_csv";
+        JSONObject parameters = new JSONObject();
+        csvTypes.forEach(type -> parameters.put(type, true));
+        JSONObject report = new JSONObject(client.postJson(reportsApi,
+                new JSONObject().put("parameters", parameters).toString()).body);
+        String reportId = report.get("id").toString();
+        LOG.ok("Provisioning report {0} started for {1}", reportId, csvTypes);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (!REPORT_STATUS_COMPLETE.equals(report.optString("status"))) {
+            String status = report.optString("status");
+            if (REPORT_STATUSES_FAILED.contains(status)) {
+                throw new ConnectorException("Provisioning report " + reportId + " failed with status '"
+                        + status + "': " + report.optJSONObject("parameters"));
+            }
+            if (System.nanoTime() > deadline) {
+                throw new OperationTimeoutException("Provisioning report " + reportId
+                        + " not complete after " + timeoutSeconds + " s, last status: " + status);
+            }
+            sleep(pollIntervalMillis);
+            report = new JSONObject(client.get(reportsApi + "/" + reportId).body);
+            LOG.ok("Provisioning report {0} status: {1}, progress: {2}",
+                    reportId, report.optString("status"), report.opt("progress"));
+        }
+
+        JSONObject attachment = report.optJSONObject("attachment");
+        String url = attachment != null ? attachment.optString("url", null) : report.optString("file_url", null);
+        if (url == null || url.isEmpty()) {
+            throw new ConnectorException("Provisioning report " + reportId + " is complete, but has no file");
+        }
+
+        Path file = null;
+        try {
+            file = Files.createTempFile("canvas-provisioning-" + reportId + "-", ".tmp");
+            client.download(url, file);
+            return new CanvasProvisioningReport(file, csvTypes);
+        } catch (IOException | RuntimeException e) {
+            deleteQuietly(file);
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            throw new ConnectorIOException("Couldn't read provisioning report " + reportId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Passes rows of the CSV (e.g. {@link #USERS}) to the handler, which can return false to stop the processing.
+     * Rows are read one by one, the whole CSV is never in memory.
+     */
+    public void forEachRow(String csvType, Predicate<Map<String, String>> rowHandler) {
+        if (!csvTypes.contains(csvType)) {
+            throw new IllegalArgumentException("CSV " + csvType + " was not requested for the report");
+        }
+        try (InputStream input = openCsv(csvType);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            CsvReader csvReader = new CsvReader(reader);
+            Map<String, String> row;
+            while ((row = csvReader.next()) != null) {
+                if (!rowHandler.test(row)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            throw new ConnectorIOException("Couldn't read " + csvType + " from provisioning report: " + e.getMessage(), e);
+        }
+    }
+
+    private InputStream openCsv(String csvType) throws IOException {
+        if (zipFile == null) {
+            return Files.newInputStream(file);
+        }
+        ZipEntry entry = zipFile.getEntry(csvType + ".csv");
+        if (entry == null) {
+            throw new IOException("Missing " + csvType + ".csv in the report file");
+        }
+        return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public void close() {
+        if (zipFile != null) {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                LOG.warn("Couldn't close report file {0}: {1}", file, e.getMessage());
+            }
+        }
+        deleteQuietly(file);
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOG.warn("Couldn't delete report file {0}: {1}", file, e.getMessage());
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for provisioning report", e);
+        }
+    }
+}
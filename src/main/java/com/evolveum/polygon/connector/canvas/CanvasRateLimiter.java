@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+
+/**
+ * Client-side throttling based on Canvas rate limit headers, shared by all connector instances using the same token.
+ * <p>
+ * Canvas throttles requests per token using a leaky bucket, see
+ * <a href="https://canvas.instructure.com/doc/api/file.throttling.html">throttling docs</a>.
+ * Each response contains {@code X-Rate-Limit-Remaining} (remaining bucket capacity) and
+ * {@code X-Request-Cost} (cost of the request).
+ * Each request in progress is also charged an up-front penalty, so concurrent requests drain the bucket faster.
+ * <p>
+ * This limiter estimates the remaining capacity from the last known value, the time since then (the bucket leaks
+ * at a constant rate, but never above the highest remaining capacity seen so far) and the requests in flight.
+ * If the estimate is below the configured minimum, the request waits until the bucket leaks enough.
+ * If connector instances with the same token use different minimums, the highest one is used.
+ */
+public class CanvasRateLimiter {
+
+    private static final Log LOG = Log.getLog(CanvasRateLimiter.class);
+
+    public static final String HEADER_RATE_LIMIT_REMAINING = "X-Rate-Limit-Remaining";
+    public static final String HEADER_REQUEST_COST = "X-Request-Cost";
+
+    /** Cost charged by Canvas for each request in progress, refunded when the request finishes. */
+    private static final double PRE_FLIGHT_COST = 50;
+
+    /** How fast the bucket leaks (units per second), Canvas default. */
+    private static final double OUTFLOW_PER_SECOND = 10;
+
+    /** Waiting is done in slices, so the estimate is re-evaluated when other responses arrive. */
+    private static final long MAX_WAIT_SLICE_MILLIS = 1000;
+
+    private static final Map<String, CanvasRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /** Returns rate limiter shared for the token (hash) or null if the rate limiting is disabled. */
+    public static CanvasRateLimiter get(CanvasConfiguration configuration) {
+        if (configuration.getRateLimitMinRemaining() <= 0) {
+            return null;
+        }
+        CanvasRateLimiter limiter = LIMITERS.computeIfAbsent(
+                CanvasHttpClients.tokenHash(configuration), k -> new CanvasRateLimiter());
+        limiter.raiseMinRemaining(configuration.getRateLimitMinRemaining());
+        return limiter;
+    }
+
+    // Guarded by this:
+    private double minRemaining;
+    private double lastRemaining = Double.NaN; // unknown until the first response
+    private double maxRemaining = Double.NaN; // high-water mark, the bucket size is not known otherwise
+    private long lastUpdateNanos;
+    private int inFlight;
+    private double averageCost;
+
+    /** The limiter is shared by the token, the strictest (highest) minimum of all configurations is kept. */
+    synchronized void raiseMinRemaining(double configuredMinRemaining) {
+        minRemaining = Math.max(minRemaining, configuredMinRemaining);
+    }
+
+    /** Waits, if necessary, and registers the request as in flight; {@link #release} must follow. */
+    public synchronized void acquire() {
+        try {
+            while (true) {
+                double estimate = estimateRemaining();
+                if (Double.isNaN(estimate) || estimate >= minRemaining) {
+                    inFlight++;
+                    return;
+                }
+                long waitMillis = Math.min(MAX_WAIT_SLICE_MILLIS,
+                        (long) Math.ceil((minRemaining - estimate) / OUTFLOW_PER_SECOND * 1000));
+                LOG.ok("Canvas rate limit: estimated remaining {0} (in flight {1}), waiting {2} ms",
+                        estimate, inFlight, waitMillis);
+                wait(Math.max(waitMillis, 1));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("Interrupted while waiting for Canvas rate limit", e);
+        }
+    }
+
+    /**
+     * Unregisters the request and updates the estimate with the response headers.
+     * Values are null if the headers were not present (or there was no response).
+     */
+    public synchronized void release(Double remaining, Double cost) {
+        inFlight--;
+        if (remaining != null) {
+            lastRemaining = remaining;
+            lastUpdateNanos = System.nanoTime();
+            maxRemaining = Double.isNaN(maxRemaining) ? remaining : Math.max(maxRemaining, remaining);
+        }
+        if (cost != null) {
+            averageCost = averageCost == 0 ? cost : averageCost * 0.9 + cost * 0.1;
+        }
+        notifyAll();
+    }
+
+    /** Must be called when holding the lock. */
+    private double estimateRemaining() {
+        if (Double.isNaN(lastRemaining)) {
+            return Double.NaN;
+        }
+        double elapsedSeconds = (System.nanoTime() - lastUpdateNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        // In-flight requests will cost at least the average, and the pre-flight penalty is charged for them now.
+        double inFlightCost = inFlight * Math.max(PRE_FLIGHT_COST, averageCost);
+        // After an idle period the bucket is empty, the leak can't make the capacity higher than the bucket size.
+        double leaked = Math.min(lastRemaining + elapsedSeconds * OUTFLOW_PER_SECOND, maxRemaining);
+        return leaked - inFlightCost;
+    }
+}
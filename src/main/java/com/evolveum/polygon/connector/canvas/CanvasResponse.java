@@ -15,16 +15,23 @@
  */
 package com.evolveum.polygon.connector.canvas;
 
+import java.util.function.Predicate;
+
 import org.apache.http.client.methods.HttpRequestBase;
+import org.json.JSONObject;
+import org.json.JSONTokener;
 
 public class CanvasResponse {
 
     public final HttpRequestBase request; // for internal use, not shown in toString()
 
-    public String body;
+    public String body; // null for streamed responses, see CanvasClient#getEach
+    public String page; // page of this response (number or bookmark), set only for responses from CanvasPager
     public String nextPage; // null means no next page
     public String pageSize; // page size returned by API, may be lower than what we started with
+    public String lastPage; // from rel=last link, only provided for numeric pagination (not for bookmarks)
     public int statusCode; // HTTP status code
+    public Long retryAfterSeconds; // Retry-After header, if provided
 
     public CanvasResponse(HttpRequestBase request) {
         this.request = request;
@@ -36,9 +43,21 @@ public class CanvasResponse {
         if (nextPage != null) {
             sb.append(", nextPage=").append(nextPage).append(", pageSize=").append(pageSize);
         }
+        if (lastPage != null) {
+            sb.append(", lastPage=").append(lastPage);
+        }
         return sb.append('}').toString();
     }
 
+    /** True if the next and last pages are known page numbers, so the remaining pages can be requested directly. */
+    public boolean hasNumericPagination() {
+        return isPageNumber(nextPage) && isPageNumber(lastPage);
+    }
+
+    private static boolean isPageNumber(String page) {
+        return page != null && !page.isEmpty() && page.length() < 10 && page.chars().allMatch(Character::isDigit);
+    }
+
     public boolean isSuccess() {
         return statusCode >= 200 && statusCode < 300;
     }
@@ -47,6 +66,49 @@ public class CanvasResponse {
         return !isSuccess();
     }
 
+    /**
+     * Canvas returns 403 with "Rate Limit Exceeded" body when the request is throttled,
+     * 429 is not used by Canvas itself, but can be returned by a proxy.
+     */
+    public boolean isThrottled() {
+        return statusCode == 429
+                || (statusCode == 403 && body != null && body.contains("Rate Limit Exceeded"));
+    }
+
+    /**
+     * Passes elements of JSON array body to the handler one by one, without creating the whole JSON array.
+     * Returns false if the handler stopped the processing.
+     */
+    public boolean forEachElement(Predicate<JSONObject> elementHandler) {
+        return forEachElement(new JSONTokener(body), elementHandler);
+    }
+
+    /**
+     * Parses JSON array elements incrementally from the tokener and passes them to the handler.
+     * Returns false if the handler stopped the processing (returned false), the rest of the input is not read then.
+     */
+    public static boolean forEachElement(JSONTokener tokener, Predicate<JSONObject> elementHandler) {
+        if (tokener.nextClean() != '[') {
+            throw tokener.syntaxError("A JSONArray text must start with '['");
+        }
+        if (tokener.nextClean() == ']') {
+            return true;
+        }
+        tokener.back();
+        while (true) {
+            if (!elementHandler.test((JSONObject) tokener.nextValue())) {
+                return false;
+            }
+            char c = tokener.nextClean();
+            if (c == ']') {
+                return true;
+            }
+            if (c != ',') {
+                throw tokener.syntaxError("Expected a ',' or ']'");
+            }
+        }
+    }
+
     public String bodyPreview(int maxChars) {
         if (body != null) {
             return body.length() > maxChars ? body.substring(0, maxChars) + "..." : body;
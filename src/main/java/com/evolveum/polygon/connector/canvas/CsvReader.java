@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal streaming reader for CSV files produced by Canvas reports (RFC 4180: comma separated,
+ * fields optionally quoted with double quotes, quotes escaped by doubling, line breaks allowed in quoted fields).
+ * The first line is the header, rows are returned as maps column name -> value.
+ */
+class CsvReader {
+
+    private final Reader reader;
+    private final List<String> header;
+    private int lookahead = -2; // -2 = nothing read ahead
+
+    CsvReader(Reader reader) throws IOException {
+        this.reader = reader;
+        // BOM is sometimes present at the beginning of the file, it's skipped before the (possibly quoted) header
+        int first = reader.read();
+        if (first != '\uFEFF') {
+            lookahead = first;
+        }
+        header = readRecord();
+        if (header == null) {
+            throw new IOException("CSV file is empty, header expected");
+        }
+    }
+
+    /** Returns next row or null at the end of the file, missing trailing fields are not in the map. */
+    Map<String, String> next() throws IOException {
+        List<String> fields;
+        do {
+            fields = readRecord();
+            if (fields == null) {
+                return null;
+            }
+        } while (fields.size() == 1 && fields.get(0).isEmpty()); // empty line
+
+        Map<String, String> row = new HashMap<>();
+        for (int i = 0; i < fields.size() && i < header.size(); i++) {
+            row.put(header.get(i), fields.get(i));
+        }
+        return row;
+    }
+
+    private List<String> readRecord() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unexpected end of CSV file in quoted field");
+                } else if (c == '"') {
+                    int next = read();
+                    if (next == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        c = next;
+                        continue;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.isEmpty()) {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    int next = read();
+                    if (next != '\n') {
+                        lookahead = next;
+                    }
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    private int read() throws IOException {
+        if (lookahead != -2) {
+            int c = lookahead;
+            lookahead = -2;
+            return c;
+        }
+        return reader.read();
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+
+/**
+ * Enrollment changes for one course role, computed by a merge-walk of existing enrollments sorted by the related ID
+ * (user ID for a course, course ID for a user) and sorted requested IDs.
+ * <p>
+ * For each requested ID the best existing enrollment is reused - active one is left alone, inactive one
+ * is reactivated, otherwise the enrollment is created (Canvas reuses e.g. completed enrollments on create).
+ * Enrollments to delete are inactivated, enrollments already inactive or completed are not touched.
+ */
+class EnrollmentDiff {
+
+    enum Mode {
+        /** Requested IDs are the new complete set, the other enrollments are inactivated. */
+        REPLACE,
+        /** Requested IDs are added. */
+        ADD,
+        /** Enrollments with requested IDs are inactivated. */
+        REMOVE
+    }
+
+    /** Related IDs (user or course IDs) for which a new enrollment is created. */
+    final int[] createIds;
+    /** Rows of the existing enrollment table to reactivate. */
+    final int[] reactivateRows;
+    /** Rows of the existing enrollment table to inactivate. */
+    final int[] inactivateRows;
+
+    private EnrollmentDiff(int[] createIds, int[] reactivateRows, int[] inactivateRows) {
+        this.createIds = createIds;
+        this.reactivateRows = reactivateRows;
+        this.inactivateRows = inactivateRows;
+    }
+
+    static EnrollmentDiff compute(EnrollmentTable existing, boolean keyedByUser, int[] requestedIds, Mode mode) {
+        IntArrayBuilder create = new IntArrayBuilder();
+        IntArrayBuilder reactivate = new IntArrayBuilder();
+        IntArrayBuilder inactivate = new IntArrayBuilder();
+
+        int[] rows = existing.rowsSortedBy(keyedByUser);
+        int i = 0;
+        int j = 0;
+        while (i < rows.length || j < requestedIds.length) {
+            if (j == requestedIds.length
+                    || i < rows.length && existing.key(rows[i], keyedByUser) < requestedIds[j]) {
+                // existing, not requested
+                int groupEnd = groupEnd(existing, keyedByUser, rows, i);
+                if (mode == Mode.REPLACE) {
+                    addActiveRows(existing, rows, i, groupEnd, inactivate);
+                }
+                i = groupEnd;
+            } else if (i == rows.length || requestedIds[j] < existing.key(rows[i], keyedByUser)) {
+                // requested, not existing
+                if (mode != Mode.REMOVE) {
+                    create.add(requestedIds[j]);
+                }
+                j++;
+            } else {
+                int groupEnd = groupEnd(existing, keyedByUser, rows, i);
+                if (mode == Mode.REMOVE) {
+                    addActiveRows(existing, rows, i, groupEnd, inactivate);
+                } else {
+                    int bestRow = bestRowToReuse(existing, rows, i, groupEnd);
+                    if (existing.state(bestRow) == EnrollmentTable.STATE_INACTIVE) {
+                        reactivate.add(bestRow);
+                    } else if (existing.state(bestRow) != EnrollmentTable.STATE_ACTIVE) {
+                        create.add(requestedIds[j]);
+                    }
+                }
+                i = groupEnd;
+                j++;
+            }
+        }
+        return new EnrollmentDiff(create.build(), reactivate.build(), inactivate.build());
+    }
+
+    /** Returns index after the last row with the same key as the row at {@code start}. */
+    private static int groupEnd(EnrollmentTable existing, boolean keyedByUser, int[] rows, int start) {
+        int key = existing.key(rows[start], keyedByUser);
+        int end = start + 1;
+        while (end < rows.length && existing.key(rows[end], keyedByUser) == key) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void addActiveRows(EnrollmentTable existing, int[] rows, int start, int end, IntArrayBuilder target) {
+        for (int i = start; i < end; i++) {
+            if (!existing.isInactiveState(rows[i])) {
+                target.add(rows[i]);
+            }
+        }
+    }
+
+    /** Active enrollment first, then inactive one, then the first of the others. */
+    private static int bestRowToReuse(EnrollmentTable existing, int[] rows, int start, int end) {
+        int bestRow = rows[start];
+        for (int i = start; i < end; i++) {
+            byte state = existing.state(rows[i]);
+            if (state == EnrollmentTable.STATE_ACTIVE) {
+                return rows[i];
+            }
+            if (state == EnrollmentTable.STATE_INACTIVE && existing.state(bestRow) != EnrollmentTable.STATE_INACTIVE) {
+                bestRow = rows[i];
+            }
+        }
+        return bestRow;
+    }
+
+    /** Parses ID attribute values (strings) to sorted array without duplicates. */
+    static int[] sortedIds(Collection<?> values) {
+        int[] ids = new int[values.size()];
+        int count = 0;
+        for (Object value : values) {
+            try {
+                ids[count++] = Integer.parseInt(String.valueOf(value));
+            } catch (NumberFormatException e) {
+                throw new InvalidAttributeValueException("Invalid ID '" + value + "', numeric ID expected");
+            }
+        }
+        Arrays.sort(ids);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || ids[unique - 1] != ids[i]) {
+                ids[unique++] = ids[i];
+            }
+        }
+        return unique == ids.length ? ids : Arrays.copyOf(ids, unique);
+    }
+
+    private static class IntArrayBuilder {
+
+        private int[] values = new int[8];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] build() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
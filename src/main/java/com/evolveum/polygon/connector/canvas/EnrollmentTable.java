@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Enrollments of one course role stored in primitive columns (enrollment ID, user ID, course ID, state),
+ * so even big courses don't need an object per enrollment.
+ * Rows are addressed by index in the order of addition, see {@link EnrollmentDiff} for the computation of changes.
+ */
+class EnrollmentTable {
+
+    static final byte STATE_ACTIVE = 0;
+    static final byte STATE_INACTIVE = 1;
+    static final byte STATE_COMPLETED = 2;
+    static final byte STATE_INVITED = 3;
+    static final byte STATE_OTHER = 4;
+
+    private int[] enrollmentIds = new int[16];
+    private int[] userIds = new int[16];
+    private int[] courseIds = new int[16];
+    private byte[] states = new byte[16];
+    private int size;
+
+    void add(int enrollmentId, int userId, int courseId, String state) {
+        if (size == enrollmentIds.length) {
+            int capacity = size * 2;
+            enrollmentIds = Arrays.copyOf(enrollmentIds, capacity);
+            userIds = Arrays.copyOf(userIds, capacity);
+            courseIds = Arrays.copyOf(courseIds, capacity);
+            states = Arrays.copyOf(states, capacity);
+        }
+        enrollmentIds[size] = enrollmentId;
+        userIds[size] = userId;
+        courseIds[size] = courseId;
+        states[size] = stateCode(state);
+        size++;
+    }
+
+    /** Changes the state of the enrollment with the same ID, or adds the enrollment if it's not in the table yet. */
+    void addOrUpdate(int enrollmentId, int userId, int courseId, String state) {
+        for (int row = 0; row < size; row++) {
+            if (enrollmentIds[row] == enrollmentId) {
+                states[row] = stateCode(state);
+                return;
+            }
+        }
+        add(enrollmentId, userId, courseId, state);
+    }
+
+    EnrollmentTable copy() {
+        EnrollmentTable copy = new EnrollmentTable();
+        int capacity = Math.max(size, 16);
+        copy.enrollmentIds = Arrays.copyOf(enrollmentIds, capacity);
+        copy.userIds = Arrays.copyOf(userIds, capacity);
+        copy.courseIds = Arrays.copyOf(courseIds, capacity);
+        copy.states = Arrays.copyOf(states, capacity);
+        copy.size = size;
+        return copy;
+    }
+
+    boolean containsUser(int userId) {
+        for (int row = 0; row < size; row++) {
+            if (userIds[row] == userId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte stateCode(String state) {
+        return switch (state) {
+            case "active" -> STATE_ACTIVE;
+            case "inactive" -> STATE_INACTIVE;
+            case "completed" -> STATE_COMPLETED;
+            case "invited" -> STATE_INVITED;
+            default -> STATE_OTHER;
+        };
+    }
+
+    int size() {
+        return size;
+    }
+
+    int enrollmentId(int row) {
+        return enrollmentIds[row];
+    }
+
+    int userId(int row) {
+        return userIds[row];
+    }
+
+    int courseId(int row) {
+        return courseIds[row];
+    }
+
+    byte state(int row) {
+        return states[row];
+    }
+
+    /** Related ID of the row - user ID for enrollments of a course, course ID for enrollments of a user. */
+    int key(int row, boolean keyedByUser) {
+        return keyedByUser ? userIds[row] : courseIds[row];
+    }
+
+    // These two are default for state[]: https://canvas.instructure.com/doc/api/enrollments.html#method.enrollments_api.index
+    boolean isCurrent(int row) {
+        return states[row] == STATE_ACTIVE || states[row] == STATE_INVITED;
+    }
+
+    /** Inactive or completed enrollment, these are not deleted (inactivated) again. */
+    boolean isInactiveState(int row) {
+        return states[row] == STATE_INACTIVE || states[row] == STATE_COMPLETED;
+    }
+
+    /**
+     * Returns row indexes sorted by the related ID (see {@link #key}), rows with the same ID stay in the order
+     * of addition. Key and row are packed into a long, so the sorting is done on primitives.
+     */
+    int[] rowsSortedBy(boolean keyedByUser) {
+        long[] packed = new long[size];
+        for (int row = 0; row < size; row++) {
+            packed[row] = ((long) key(row, keyedByUser) << 32) | row;
+        }
+        Arrays.sort(packed);
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) {
+            rows[i] = (int) packed[i];
+        }
+        return rows;
+    }
+
+    /** User IDs of current enrollments as strings, as used for connector attributes. */
+    List<String> currentUserIds() {
+        return currentIds(userIds);
+    }
+
+    /** Course IDs of current enrollments as strings, as used for connector attributes. */
+    List<String> currentCourseIds() {
+        return currentIds(courseIds);
+    }
+
+    private List<String> currentIds(int[] ids) {
+        List<String> result = new ArrayList<>();
+        for (int row = 0; row < size; row++) {
+            if (isCurrent(row)) {
+                result.add(String.valueOf(ids[row]));
+            }
+        }
+        return result;
+    }
+}
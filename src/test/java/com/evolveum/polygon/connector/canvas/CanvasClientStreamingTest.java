@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.json.JSONException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Streaming of listed pages against a local HTTP server, with a single pooled connection,
+ * so a nested request during the streaming can't get a connection.
+ */
+public class CanvasClientStreamingTest {
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private CanvasClient client;
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        respond("/api/v1/items", "[{\"id\":1},{\"id\":2}]");
+        respond("/api/v1/broken", "[{\"id\":1},{\"id\":");
+        respond("/api/v1/detail", "{\"ok\":true}");
+        server.start();
+
+        CanvasConfiguration configuration = new CanvasConfiguration();
+        configuration.setBaseUrl("http://localhost:" + server.getAddress().getPort());
+        configuration.setAuthToken(new GuardedString("streaming-test-token".toCharArray()));
+        configuration.setStreamingPageParsing(true);
+        configuration.setMaxConnectionsPerRoute(1);
+        configuration.setConnectionRequestTimeoutSeconds(1);
+        client = new CanvasClient(configuration);
+    }
+
+    private void respond(String path, String body) {
+        server.createContext(path, exchange -> {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (client != null) {
+            client.close();
+        }
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void nestedRequestsWorkWhenStreamingIsNotAllowed() {
+        List<Integer> ids = new ArrayList<>();
+        try (CanvasPager pager = client.pages("/items")) {
+            CanvasResponse response = pager.nextEach(json -> {
+                assertThat(client.get("/detail").body).contains("ok");
+                return ids.add(json.getInt("id"));
+            }, false);
+
+            assertThat(response.body).isNotNull(); // read whole, not streamed
+            assertThat(pager.nextEach(json -> true, false)).isNull();
+        }
+        assertThat(ids).containsExactly(1, 2);
+    }
+
+    @Test
+    public void streamedPageIsParsedFromTheResponse() {
+        List<Integer> ids = new ArrayList<>();
+        try (CanvasPager pager = client.pages("/items")) {
+            CanvasResponse response = pager.nextEach(json -> ids.add(json.getInt("id")));
+
+            assertThat(response.body).isNull();
+        }
+        assertThat(ids).containsExactly(1, 2);
+    }
+
+    @Test
+    public void nestedRequestDuringStreamingFailsWhenThePoolIsExhausted() {
+        // this is why the conversion with REST calls must not be streamed, without the timeout it would hang
+        assertThatThrownBy(() -> client.getEach("/items", json -> client.get("/detail") != null))
+                .isInstanceOf(ConnectorIOException.class)
+                .hasMessageNotContaining("Reading of streamed response failed");
+    }
+
+    @Test
+    public void handlerExceptionIsPropagatedUnchanged() {
+        IllegalStateException failure = new IllegalStateException("handler failed");
+
+        assertThatThrownBy(() -> client.getEach("/items", json -> {
+            throw failure;
+        })).isSameAs(failure);
+    }
+
+    @Test
+    public void handlerJsonExceptionIsNotReportedAsParsingFailure() {
+        assertThatThrownBy(() -> client.getEach("/items", json -> json.getInt("missing") > 0))
+                .isInstanceOf(JSONException.class)
+                .hasMessageContaining("missing");
+    }
+
+    @Test
+    public void malformedResponseIsReportedAsParsingFailure() {
+        assertThatThrownBy(() -> client.getEach("/broken", json -> true))
+                .isInstanceOf(ConnectorIOException.class)
+                .hasMessageContaining("Reading of streamed response failed");
+    }
+}
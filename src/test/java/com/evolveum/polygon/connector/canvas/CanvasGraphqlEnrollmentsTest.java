@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import static com.evolveum.polygon.connector.canvas.CanvasConnector.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Enrollments read with GraphQL against a local stub, they must be the same as with REST:
+ * only current enrollments in courses of the configured root account.
+ */
+public class CanvasGraphqlEnrollmentsTest {
+
+    private static final int ACCOUNT_ID = 1;
+    private static final int OTHER_ROOT_ACCOUNT_ID = 99;
+    private static final int STUDENT_ROLE_ID = 3;
+    private static final int TEACHER_ROLE_ID = 4;
+
+    private HttpServer server;
+    private CanvasConnector connector;
+    private final List<String> courseRequests = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/api/v1/users/101", exchange -> respond(exchange, 200,
+                new JSONObject().put("id", 101).put("login_id", "alice").put("name", "Alice Smith")));
+        server.createContext("/api/graphql", exchange -> {
+            JSONArray enrollments = new JSONArray()
+                    .put(enrollment("active", STUDENT_ROLE_ID, 201))
+                    .put(enrollment("active", STUDENT_ROLE_ID, 301)) // other root account
+                    .put(enrollment("invited", TEACHER_ROLE_ID, 202))
+                    .put(enrollment("invited", TEACHER_ROLE_ID, 302)) // other root account
+                    .put(enrollment("deleted", STUDENT_ROLE_ID, 203))
+                    .put(enrollment("active", 77, 204)); // other role
+            respond(exchange, 200, new JSONObject().put("data",
+                    new JSONObject().put("u101", new JSONObject().put("enrollments", enrollments))));
+        });
+        server.createContext("/api/v1/courses/", exchange -> {
+            String courseId = exchange.getRequestURI().getPath().substring("/api/v1/courses/".length());
+            courseRequests.add(courseId);
+            int rootAccountId = courseId.startsWith("3") ? OTHER_ROOT_ACCOUNT_ID : ACCOUNT_ID;
+            respond(exchange, 200, new JSONObject().put("id", Integer.parseInt(courseId))
+                    .put("name", "Course " + courseId).put("root_account_id", rootAccountId));
+        });
+        server.start();
+
+        CanvasConfiguration configuration = new CanvasConfiguration();
+        configuration.setBaseUrl("http://localhost:" + server.getAddress().getPort());
+        configuration.setAuthToken(new GuardedString("graphql-test-token".toCharArray()));
+        configuration.setAccountId(ACCOUNT_ID);
+        configuration.setStudentRoleId(STUDENT_ROLE_ID);
+        configuration.setTeacherRoleId(TEACHER_ROLE_ID);
+        configuration.setGraphqlEnrollments(true);
+        connector = new CanvasConnector();
+        connector.init(configuration);
+    }
+
+    private static JSONObject enrollment(String state, int roleId, int courseId) {
+        return new JSONObject().put("state", state)
+                .put("role", new JSONObject().put("_id", String.valueOf(roleId)))
+                .put("course", new JSONObject().put("_id", String.valueOf(courseId)));
+    }
+
+    private static void respond(HttpExchange exchange, int status, JSONObject body) throws IOException {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        connector.dispose();
+        server.stop(0);
+    }
+
+    @Test
+    public void coursesOfOtherRootAccountsAreIgnored() {
+        ConnectorObject user = readUser();
+
+        assertThat(user.getAttributeByName(STUDENT_COURSE_IDS).getValue()).containsExactly("201");
+        assertThat(user.getAttributeByName(TEACHER_COURSE_IDS).getValue()).containsExactly("202");
+        assertThat(courseRequests).containsExactlyInAnyOrder("201", "301", "202", "302");
+
+        // the root account of the courses is remembered
+        courseRequests.clear();
+        assertThat(readUser().getAttributeByName(STUDENT_COURSE_IDS).getValue()).containsExactly("201");
+        assertThat(courseRequests).isEmpty();
+    }
+
+    private ConnectorObject readUser() {
+        List<ConnectorObject> users = new ArrayList<>();
+        CanvasFilter filter = new CanvasFilter();
+        filter.idEqualTo = "101";
+        connector.executeQuery(OBJECT_CLASS_USER, filter, users::add, new OperationOptionsBuilder()
+                .setAttributesToGet(STUDENT_COURSE_IDS, TEACHER_COURSE_IDS).build());
+        assertThat(users).hasSize(1);
+        return users.get(0);
+    }
+}
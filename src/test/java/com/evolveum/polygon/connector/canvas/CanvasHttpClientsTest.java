@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.evolveum.polygon.connector.canvas.CanvasHttpClients.SharedClient;
+import org.identityconnectors.common.security.GuardedString;
+import org.testng.annotations.Test;
+
+public class CanvasHttpClientsTest {
+
+    @Test
+    public void unusedClientIsClosedAfterIdleTimeoutWithoutFurtherAcquire() throws InterruptedException {
+        CanvasConfiguration configuration = configuration("http://localhost:1/idle-timeout-test");
+        SharedClient first = CanvasHttpClients.acquire(configuration);
+        SharedClient second = CanvasHttpClients.acquire(configuration);
+        assertThat(second).isSameAs(first);
+
+        CanvasHttpClients.release(first);
+        Thread.sleep(1500);
+        assertThat(first.isClosed()).isFalse(); // still used by the second reference
+
+        CanvasHttpClients.release(second);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!first.isClosed() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(first.isClosed()).isTrue();
+    }
+
+    @Test
+    public void clientReacquiredWithinIdleTimeoutIsNotClosed() throws InterruptedException {
+        CanvasConfiguration configuration = configuration("http://localhost:1/reacquire-test");
+        SharedClient first = CanvasHttpClients.acquire(configuration);
+        CanvasHttpClients.release(first);
+        SharedClient second = CanvasHttpClients.acquire(configuration);
+        assertThat(second).isSameAs(first);
+
+        Thread.sleep(1500); // the check scheduled by the first release has run
+        assertThat(second.isClosed()).isFalse();
+        CanvasHttpClients.release(second);
+    }
+
+    private static CanvasConfiguration configuration(String baseUrl) {
+        CanvasConfiguration configuration = new CanvasConfiguration();
+        configuration.setBaseUrl(baseUrl);
+        configuration.setAuthToken(new GuardedString("http-clients-test-token".toCharArray()));
+        configuration.setConnectionIdleTimeoutSeconds(1);
+        return configuration;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Page budget of prefetch and fan-out against a local HTTP server with 5 numbered pages of 2 items.
+ */
+public class CanvasPagerTest {
+
+    private static final int LAST_PAGE = 5;
+    private static final Pattern PAGE_PATTERN = Pattern.compile("page=(\\d+)");
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private final Queue<Integer> requestedPages = new ConcurrentLinkedQueue<>();
+    private final List<CanvasClient> clients = new ArrayList<>();
+
+    @BeforeClass
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/api/v1/items", exchange -> {
+            Matcher matcher = PAGE_PATTERN.matcher(exchange.getRequestURI().getQuery());
+            int page = matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+            requestedPages.add(page);
+
+            String url = "http://localhost:" + server.getAddress().getPort() + "/api/v1/items?page=";
+            String link = "<" + url + LAST_PAGE + "&per_page=2>; rel=\"last\"";
+            if (page < LAST_PAGE) {
+                link = "<" + url + (page + 1) + "&per_page=2>; rel=\"next\", " + link;
+            }
+            byte[] bytes = ("[{\"id\":" + (page * 2 - 1) + "},{\"id\":" + page * 2 + "}]")
+                    .getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("Link", link);
+            exchange.sendResponseHeaders(200, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        });
+        server.start();
+    }
+
+    @BeforeMethod
+    public void clearRequests() {
+        requestedPages.clear();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        clients.forEach(CanvasClient::close);
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    private CanvasClient client(int prefetchDepth, int fanOutConcurrency) {
+        CanvasConfiguration configuration = new CanvasConfiguration();
+        configuration.setBaseUrl("http://localhost:" + server.getAddress().getPort());
+        configuration.setAuthToken(new GuardedString("pager-test-token".toCharArray()));
+        configuration.setPagePrefetchDepth(prefetchDepth);
+        configuration.setPageFanOutConcurrency(fanOutConcurrency);
+        CanvasClient client = new CanvasClient(configuration);
+        clients.add(client);
+        return client;
+    }
+
+    @Test
+    public void fanOutDoesNotRequestPagesAfterTheBudget() {
+        try (CanvasPager pager = client(0, 4).pages("/items", "1", "2", 2)) {
+            assertThat(pager.next().page).isEqualTo("1");
+            assertThat(pager.next().page).isEqualTo("2");
+        }
+        assertThat(requestedPages).containsExactlyInAnyOrder(1, 2);
+    }
+
+    @Test
+    public void singlePageBudgetRequestsNothingAhead() {
+        try (CanvasPager pager = client(2, 4).pages("/items", "3", "2", 1)) {
+            assertThat(pager.next().page).isEqualTo("3");
+        }
+        assertThat(requestedPages).containsExactly(3);
+    }
+
+    @Test
+    public void prefetchDoesNotRequestPagesAfterTheBudget() throws InterruptedException {
+        try (CanvasPager pager = client(3, 1).pages("/items", "1", "2", 2)) {
+            assertThat(pager.next().page).isEqualTo("1");
+            assertThat(pager.next().page).isEqualTo("2");
+            Thread.sleep(200); // would be enough for the prefetch thread to request more
+        }
+        assertThat(requestedPages).containsExactly(1, 2);
+    }
+
+    @Test
+    public void pagesAfterTheBudgetAreRequestedSequentially() {
+        List<Integer> ids = new ArrayList<>();
+        for (CanvasClient client : List.of(client(3, 1), client(0, 4))) {
+            ids.clear();
+            try (CanvasPager pager = client.pages("/items", "1", "2", 2)) {
+                CanvasResponse response;
+                while ((response = pager.next()) != null) {
+                    response.forEachElement(json -> ids.add(json.getInt("id")));
+                }
+            }
+            assertThat(ids).containsExactly(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        }
+    }
+
+    @Test
+    public void unlimitedBudgetFetchesAllPagesWithFanOut() {
+        List<String> pages = new ArrayList<>();
+        try (CanvasPager pager = client(0, 4).pages("/items")) {
+            CanvasResponse response;
+            while ((response = pager.next()) != null) {
+                pages.add(response.page);
+            }
+        }
+        assertThat(pages).containsExactly("1", "2", "3", "4", "5");
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import static com.evolveum.polygon.connector.canvas.CanvasConnector.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.*;
+import org.json.JSONObject;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Listing from the provisioning report against local stubs: Canvas serves the report start and status,
+ * the attachment download is redirected to a file server on another host (like the file storage with signed URLs).
+ */
+public class CanvasReportListingTest {
+
+    private static final String TOKEN = "report-test-token";
+    private static final int ACCOUNT_ID = 1;
+    private static final int STUDENT_ROLE_ID = 3;
+    private static final int TEACHER_ROLE_ID = 4;
+
+    private static final String USERS_CSV = """
+            canvas_user_id,user_id,login_id,first_name,last_name,full_name,sortable_name,short_name,email,status,authentication_provider_id
+            101,,alice,Alice,Smith,Alice Smith,"Smith, Alice",Alice,alice@example.com,active,
+            101,,alice-second-login,Alice,Smith,Alice Smith,"Smith, Alice",Alice,alice@example.com,active,
+            102,,bob,Bob,Jones,,"Jones, Bob",Bob,bob@example.com,suspended,5
+            ,,sis-only,Nobody,,,,,,active,
+            """;
+
+    private static final String ENROLLMENTS_CSV = """
+            canvas_course_id,course_id,canvas_user_id,user_id,role,role_id,status
+            201,,101,,student,3,active
+            202,,101,,teacher,4,invited
+            203,,101,,student,3,deleted
+            201,,102,,observer,99,active
+            """;
+
+    private static final String COURSES_CSV = """
+            canvas_course_id,course_id,short_name,long_name,canvas_account_id,status,start_date,end_date
+            201,,MATH1,"Mathematics, basic",1,active,2024-09-01T00:00:00Z,
+            202,,PHYS,Physics,1,completed,,
+            """;
+
+    private HttpServer canvasServer;
+    private HttpServer fileServer;
+    private CanvasConnector connector;
+
+    // set for each test
+    private final Deque<String> reportStatuses = new ConcurrentLinkedDeque<>();
+    private byte[] reportFile;
+    private JSONObject reportParameters;
+    private final List<String> canvasAuthorizations = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> fileAuthorizations = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public void startServers() throws IOException {
+        fileServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        fileServer.createContext("/storage/report", exchange -> {
+            fileAuthorizations.add(String.valueOf(exchange.getRequestHeaders().getFirst("Authorization")));
+            respond(exchange, 200, reportFile);
+        });
+        fileServer.start();
+        String fileUrl = "http://127.0.0.1:" + fileServer.getAddress().getPort() + "/storage/report?signature=abc";
+
+        canvasServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        String canvasUrl = "http://localhost:" + canvasServer.getAddress().getPort();
+        String reportsPath = "/api/v1/accounts/" + ACCOUNT_ID + "/reports/provisioning_csv";
+        canvasServer.createContext(reportsPath, exchange -> {
+            canvasAuthorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            JSONObject report = new JSONObject().put("id", 7);
+            if (exchange.getRequestMethod().equals("POST")) {
+                reportParameters = new JSONObject(new String(exchange.getRequestBody().readAllBytes(),
+                        StandardCharsets.UTF_8)).getJSONObject("parameters");
+                report.put("status", "created");
+            } else if (exchange.getRequestURI().getPath().equals(reportsPath + "/7")) {
+                String status = reportStatuses.size() > 1 ? reportStatuses.poll() : reportStatuses.peek();
+                report.put("status", status);
+                if (status.equals("complete")) {
+                    report.put("attachment", new JSONObject().put("url", canvasUrl + "/files/77/download"));
+                }
+            } else {
+                respond(exchange, 404, "{}".getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            respond(exchange, 200, report.toString().getBytes(StandardCharsets.UTF_8));
+        });
+        canvasServer.createContext("/files/77/download", exchange -> {
+            canvasAuthorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            exchange.getResponseHeaders().add("Location", fileUrl);
+            respond(exchange, 302, "redirected".getBytes(StandardCharsets.UTF_8));
+        });
+        canvasServer.start();
+
+        CanvasConfiguration configuration = new CanvasConfiguration();
+        configuration.setBaseUrl(canvasUrl);
+        configuration.setAuthToken(new GuardedString(TOKEN.toCharArray()));
+        configuration.setAccountId(ACCOUNT_ID);
+        configuration.setStudentRoleId(STUDENT_ROLE_ID);
+        configuration.setTeacherRoleId(TEACHER_ROLE_ID);
+        configuration.setReportListing(true);
+        configuration.setReportPollIntervalMillis(10);
+        configuration.setReportTimeoutSeconds(10);
+        connector = new CanvasConnector();
+        connector.init(configuration);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServers() {
+        connector.dispose();
+        canvasServer.stop(0);
+        fileServer.stop(0);
+    }
+
+    @BeforeMethod
+    public void reset() {
+        reportStatuses.clear();
+        reportParameters = null;
+        canvasAuthorizations.clear();
+        fileAuthorizations.clear();
+    }
+
+    @AfterMethod
+    public void checkAuthorization() {
+        assertThat(canvasAuthorizations).isNotEmpty().allMatch(("Bearer " + TOKEN)::equals);
+        // signed file storage URL must not get the Canvas token
+        assertThat(fileAuthorizations).allMatch("null"::equals);
+    }
+
+    @Test
+    public void usersWithEnrollmentsAreListedFromZipReport() throws IOException {
+        reportStatuses.addAll(List.of("running", "running", "complete"));
+        reportFile = zip(Map.of("users.csv", USERS_CSV, "enrollments.csv", ENROLLMENTS_CSV));
+
+        List<ConnectorObject> users = list(OBJECT_CLASS_USER, null);
+
+        assertThat(reportParameters.keySet()).containsExactlyInAnyOrder("users", "enrollments");
+        assertThat(fileAuthorizations).hasSize(1);
+        assertThat(users).extracting(o -> o.getUid().getUidValue()).containsExactly("101", "102");
+
+        ConnectorObject alice = users.get(0);
+        assertThat(alice.getName().getNameValue()).isEqualTo("alice");
+        assertThat(value(alice, FULL_NAME)).isEqualTo("Alice Smith");
+        assertThat(value(alice, SORTABLE_NAME)).isEqualTo("Smith, Alice");
+        assertThat(value(alice, EMAIL)).isEqualTo("alice@example.com");
+        assertThat(values(alice, STUDENT_COURSE_IDS)).containsExactly("201");
+        assertThat(values(alice, TEACHER_COURSE_IDS)).containsExactly("202");
+        assertThat(value(alice, OperationalAttributes.ENABLE_NAME)).isEqualTo(true);
+        assertThat(alice.getAttributeByName(CREATED_AT)).isNull(); // not in the report
+
+        ConnectorObject bob = users.get(1);
+        assertThat(bob.getName().getNameValue()).isEqualTo("bob");
+        assertThat(value(bob, FULL_NAME)).isEqualTo("Bob Jones");
+        assertThat(values(bob, STUDENT_COURSE_IDS)).isEmpty();
+        assertThat(values(bob, TEACHER_COURSE_IDS)).isEmpty();
+        assertThat(value(bob, OperationalAttributes.ENABLE_NAME)).isEqualTo(false);
+        assertThat(value(bob, AUTHENTICATION_PROVIDER_ID)).isEqualTo(5);
+    }
+
+    @Test
+    public void coursesAreListedFromPlainCsvReport() {
+        reportStatuses.add("complete");
+        reportFile = COURSES_CSV.getBytes(StandardCharsets.UTF_8);
+
+        List<ConnectorObject> courses = list(OBJECT_CLASS_COURSE,
+                new String[] { Name.NAME, COURSE_CODE, WORKFLOW_STATE, COURSE_START_AT });
+
+        assertThat(reportParameters.keySet()).containsExactly("courses");
+        assertThat(reportParameters.getBoolean("courses")).isTrue();
+        assertThat(courses).extracting(o -> o.getUid().getUidValue()).containsExactly("201", "202");
+
+        ConnectorObject math = courses.get(0);
+        assertThat(math.getName().getNameValue()).isEqualTo("Mathematics, basic");
+        assertThat(value(math, COURSE_CODE)).isEqualTo("MATH1");
+        assertThat(value(math, WORKFLOW_STATE)).isEqualTo("available");
+        assertThat(value(math, COURSE_START_AT)).isEqualTo("2024-09-01T00:00:00Z");
+        assertThat(math.getAttributeByName(STUDENT_IDS)).isNull();
+        assertThat(value(courses.get(1), WORKFLOW_STATE)).isEqualTo("completed");
+    }
+
+    @Test
+    public void handlerCanStopTheListing() {
+        reportStatuses.add("complete");
+        reportFile = COURSES_CSV.getBytes(StandardCharsets.UTF_8);
+        List<ConnectorObject> courses = new ArrayList<>();
+
+        connector.executeQuery(OBJECT_CLASS_COURSE, null, course -> {
+            courses.add(course);
+            return false;
+        }, new OperationOptionsBuilder().setAttributesToGet(Name.NAME).build());
+
+        assertThat(courses).extracting(o -> o.getUid().getUidValue()).containsExactly("201");
+    }
+
+    @Test
+    public void failedReportIsReported() {
+        reportStatuses.addAll(List.of("running", "error"));
+
+        assertThatThrownBy(() -> list(OBJECT_CLASS_COURSE, new String[] { Name.NAME }))
+                .isInstanceOf(ConnectorException.class)
+                .hasMessageContaining("failed with status 'error'");
+        assertThat(fileAuthorizations).isEmpty();
+    }
+
+    private List<ConnectorObject> list(ObjectClass objectClass, String[] attributesToGet) {
+        List<ConnectorObject> objects = new ArrayList<>();
+        OperationOptionsBuilder options = new OperationOptionsBuilder();
+        if (attributesToGet != null) {
+            options.setAttributesToGet(attributesToGet);
+        }
+        connector.executeQuery(objectClass, null, objects::add, options.build());
+        return objects;
+    }
+
+    private static Object value(ConnectorObject object, String attributeName) {
+        return AttributeUtil.getSingleValue(object.getAttributeByName(attributeName));
+    }
+
+    private static List<Object> values(ConnectorObject object, String attributeName) {
+        return object.getAttributeByName(attributeName).getValue();
+    }
+
+    private static byte[] zip(Map<String, String> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                zip.putNextEntry(new ZipEntry(file.getKey()));
+                zip.write(file.getValue().getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+}
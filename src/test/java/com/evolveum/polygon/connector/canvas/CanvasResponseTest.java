@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.testng.annotations.Test;
+
+public class CanvasResponseTest {
+
+    @Test
+    public void emptyArrayHasNoElements() {
+        List<JSONObject> elements = new ArrayList<>();
+
+        assertThat(forEachElement(" [ ] ", elements::add)).isTrue();
+        assertThat(elements).isEmpty();
+    }
+
+    @Test
+    public void allElementsArePassedInOrder() {
+        List<JSONObject> elements = new ArrayList<>();
+
+        assertThat(forEachElement("[{\"id\":1},\n {\"id\":2} ,{\"id\":3}]", elements::add)).isTrue();
+        assertThat(elements).extracting(json -> json.getInt("id")).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void handlerCanStopTheProcessing() {
+        List<JSONObject> elements = new ArrayList<>();
+
+        // the rest of the input is not read, so even the broken end doesn't matter
+        boolean completed = forEachElement("[{\"id\":1},{\"id\":2},{\"id\":3}, broken", json -> {
+            elements.add(json);
+            return json.getInt("id") < 2;
+        });
+
+        assertThat(completed).isFalse();
+        assertThat(elements).extracting(json -> json.getInt("id")).containsExactly(1, 2);
+    }
+
+    @Test
+    public void nestedArraysAndObjectsArePartOfTheElement() {
+        List<JSONObject> elements = new ArrayList<>();
+
+        assertThat(forEachElement("[{\"id\":1,\"login\":{\"ids\":[1,[2,3]],\"text\":\"a],b}\"}},{\"id\":2,\"e\":[]}]",
+                elements::add)).isTrue();
+
+        assertThat(elements).hasSize(2);
+        JSONObject login = elements.get(0).getJSONObject("login");
+        assertThat(login.getJSONArray("ids").getJSONArray(1).getInt(1)).isEqualTo(3);
+        assertThat(login.getString("text")).isEqualTo("a],b}");
+        assertThat(elements.get(1).getJSONArray("e").length()).isZero();
+    }
+
+    @Test
+    public void bodyIsParsedLikeTheStream() {
+        CanvasResponse response = new CanvasResponse(null);
+        response.body = "[{\"id\":7}]";
+        List<JSONObject> elements = new ArrayList<>();
+
+        assertThat(response.forEachElement(elements::add)).isTrue();
+        assertThat(elements).extracting(json -> json.getInt("id")).containsExactly(7);
+    }
+
+    @Test
+    public void nonArrayInputFails() {
+        assertThatThrownBy(() -> forEachElement("{\"id\":1}", json -> true))
+                .isInstanceOf(JSONException.class)
+                .hasMessageContaining("must start with '['");
+    }
+
+    @Test
+    public void missingSeparatorFails() {
+        assertThatThrownBy(() -> forEachElement("[{\"id\":1} {\"id\":2}]", json -> true))
+                .isInstanceOf(JSONException.class)
+                .hasMessageContaining("Expected a ',' or ']'");
+    }
+
+    /** Note that {@code List::add} returns true, so it can be used as the handler processing all elements. */
+    private boolean forEachElement(String json, Predicate<JSONObject> handler) {
+        return CanvasResponse.forEachElement(new JSONTokener(json), handler);
+    }
+}
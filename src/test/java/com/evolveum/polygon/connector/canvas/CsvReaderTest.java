@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+public class CsvReaderTest {
+
+    @Test
+    public void plainRowsAreMappedByHeader() throws IOException {
+        List<Map<String, String>> rows = readAll("id,name\n1,Alice\n2,Bob\n");
+
+        assertThat(rows).containsExactly(Map.of("id", "1", "name", "Alice"), Map.of("id", "2", "name", "Bob"));
+    }
+
+    @Test
+    public void quotedFieldsCanContainSeparatorsAndLineBreaks() throws IOException {
+        List<Map<String, String>> rows = readAll("id,name\n\"1\",\"Doe, John\"\n2,\"multi\nline\r\ntext\"\n");
+
+        assertThat(rows).containsExactly(
+                Map.of("id", "1", "name", "Doe, John"),
+                Map.of("id", "2", "name", "multi\nline\r\ntext"));
+    }
+
+    @Test
+    public void doubledQuotesAreEscapedQuotes() throws IOException {
+        List<Map<String, String>> rows = readAll("id,name\n1,\"say \"\"hi\"\"\"\n2,\"\"\"\"\n3,\"\"\n");
+
+        assertThat(rows).extracting(row -> row.get("name")).containsExactly("say \"hi\"", "\"", "");
+    }
+
+    @Test
+    public void quoteInsideUnquotedFieldIsLiteral() throws IOException {
+        assertThat(readAll("id,name\n1,5\" disk\n")).containsExactly(Map.of("id", "1", "name", "5\" disk"));
+    }
+
+    @Test
+    public void crLfAndCrLineEndingsAreSupported() throws IOException {
+        List<Map<String, String>> rows = readAll("id,name\r\n1,a\r\n2,b\r3,c");
+
+        assertThat(rows).extracting(row -> row.get("name")).containsExactly("a", "b", "c");
+    }
+
+    @Test
+    public void lastLineWithoutLineBreakIsRead() throws IOException {
+        assertThat(readAll("id,name\n1,a")).containsExactly(Map.of("id", "1", "name", "a"));
+    }
+
+    @Test
+    public void bomIsSkipped() throws IOException {
+        assertThat(readAll("\uFEFFid,name\n1,a\n")).containsExactly(Map.of("id", "1", "name", "a"));
+        assertThat(readAll("\uFEFF\"id\",\"name\"\n1,a\n")).containsExactly(Map.of("id", "1", "name", "a"));
+    }
+
+    @Test
+    public void missingTrailingFieldsAreNotInTheRow() throws IOException {
+        List<Map<String, String>> rows = readAll("id,name,email\n1,a\n2,b,\n3\n");
+
+        assertThat(rows).containsExactly(
+                Map.of("id", "1", "name", "a"),
+                Map.of("id", "2", "name", "b", "email", ""),
+                Map.of("id", "3"));
+    }
+
+    @Test
+    public void extraFieldsAreIgnored() throws IOException {
+        assertThat(readAll("id\n1,extra\n")).containsExactly(Map.of("id", "1"));
+    }
+
+    @Test
+    public void emptyLinesAreSkipped() throws IOException {
+        assertThat(readAll("id,name\n\n1,a\n\r\n\n")).containsExactly(Map.of("id", "1", "name", "a"));
+    }
+
+    @Test
+    public void headerOnlyHasNoRows() throws IOException {
+        assertThat(readAll("id,name\n")).isEmpty();
+    }
+
+    @Test
+    public void emptyFileFails() {
+        assertThatThrownBy(() -> new CsvReader(new StringReader("")))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("header expected");
+    }
+
+    @Test
+    public void endOfFileInsideQuotesFails() {
+        assertThatThrownBy(() -> readAll("id,name\n1,\"unterminated\n"))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("quoted field");
+    }
+
+    private List<Map<String, String>> readAll(String csv) throws IOException {
+        CsvReader reader = new CsvReader(new StringReader(csv));
+        List<Map<String, String>> rows = new ArrayList<>();
+        Map<String, String> row;
+        while ((row = reader.next()) != null) {
+            rows.add(row);
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.evolveum.polygon.connector.canvas.EnrollmentDiff.Mode;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Enrollments in the tables are written as {@code enrollmentId:userId:state} for enrollments of course 100,
+ * reactivated and inactivated rows are compared by their enrollment IDs.
+ */
+public class EnrollmentDiffTest {
+
+    private static final String MIXED = "1:10:active 2:20:inactive 3:30:completed 4:40:active 5:50:invited";
+
+    @DataProvider
+    public Object[][] diffs() {
+        return new Object[][] {
+                // existing enrollments, requested user IDs, mode, expected created user IDs,
+                // expected reactivated enrollments, expected inactivated enrollments
+                { MIXED, ids(20, 30, 60), Mode.REPLACE, ids(30, 60), ids(2), ids(1, 4, 5) },
+                { MIXED, ids(20, 30, 60), Mode.ADD, ids(30, 60), ids(2), ids() },
+                { MIXED, ids(10, 20, 30, 60), Mode.REMOVE, ids(), ids(), ids(1) },
+                // invited enrollment is not active, so it is created (Canvas reuses it)
+                { MIXED, ids(10, 20, 30, 40, 50), Mode.REPLACE, ids(30, 50), ids(2), ids() },
+
+                // empty requested set
+                { MIXED, ids(), Mode.REPLACE, ids(), ids(), ids(1, 4, 5) },
+                { MIXED, ids(), Mode.ADD, ids(), ids(), ids() },
+                { MIXED, ids(), Mode.REMOVE, ids(), ids(), ids() },
+
+                // no existing enrollments
+                { "", ids(5, 6), Mode.REPLACE, ids(5, 6), ids(), ids() },
+                { "", ids(5, 6), Mode.ADD, ids(5, 6), ids(), ids() },
+                { "", ids(5, 6), Mode.REMOVE, ids(), ids(), ids() },
+                { "", ids(), Mode.REPLACE, ids(), ids(), ids() },
+
+                // requested IDs below and above all existing ones
+                { "1:20:active 2:30:active", ids(5, 20, 99), Mode.REPLACE, ids(5, 99), ids(), ids(2) },
+                { "1:20:active 2:30:active", ids(5, 99), Mode.ADD, ids(5, 99), ids(), ids() },
+                { "1:20:active 2:30:active", ids(5, 99), Mode.REMOVE, ids(), ids(), ids() },
+
+                // existing enrollments added out of the key order
+                { "4:40:active 1:10:inactive 3:30:active", ids(10, 30), Mode.REPLACE, ids(), ids(1), ids(4) },
+
+                // more enrollments of one user, the active one is left alone
+                { "1:10:completed 2:10:inactive 3:10:active", ids(10), Mode.ADD, ids(), ids(), ids() },
+                { "1:10:completed 2:10:inactive 3:10:active", ids(10), Mode.REPLACE, ids(), ids(), ids() },
+                { "1:10:completed 2:10:inactive 3:10:active", ids(), Mode.REPLACE, ids(), ids(), ids(3) },
+                // inactive one is reactivated (the first one), completed one is not reused
+                { "1:10:completed 2:10:inactive 3:10:inactive", ids(10), Mode.ADD, ids(), ids(2), ids() },
+                { "1:10:completed 2:10:completed", ids(10), Mode.ADD, ids(10), ids(), ids() },
+                { "1:10:completed 2:10:invited", ids(10), Mode.ADD, ids(10), ids(), ids() },
+                // all current enrollments of the user are inactivated
+                { "1:10:active 2:10:invited 3:10:completed 4:10:inactive", ids(10), Mode.REMOVE, ids(), ids(), ids(1, 2) },
+                { "1:10:active 2:10:active 3:20:active", ids(20), Mode.REPLACE, ids(), ids(), ids(1, 2) },
+        };
+    }
+
+    @Test(dataProvider = "diffs")
+    public void diffOfCourseEnrollments(String existing, int[] requestedUserIds, Mode mode,
+            int[] createIds, int[] reactivatedEnrollments, int[] inactivatedEnrollments) {
+        EnrollmentTable table = table(existing);
+
+        EnrollmentDiff diff = EnrollmentDiff.compute(table, true, requestedUserIds, mode);
+
+        assertThat(diff.createIds).containsExactly(createIds);
+        assertThat(enrollmentIds(table, diff.reactivateRows)).containsExactly(reactivatedEnrollments);
+        assertThat(enrollmentIds(table, diff.inactivateRows)).containsExactly(inactivatedEnrollments);
+    }
+
+    @Test
+    public void diffOfUserEnrollmentsIsKeyedByCourse() {
+        EnrollmentTable table = new EnrollmentTable();
+        table.add(1, 10, 300, "active");
+        table.add(2, 10, 100, "inactive");
+        table.add(3, 10, 200, "active");
+
+        EnrollmentDiff diff = EnrollmentDiff.compute(table, false, new int[] { 100, 150, 200 }, Mode.REPLACE);
+
+        assertThat(diff.createIds).containsExactly(150);
+        assertThat(enrollmentIds(table, diff.reactivateRows)).containsExactly(2);
+        assertThat(enrollmentIds(table, diff.inactivateRows)).containsExactly(1);
+    }
+
+    @Test
+    public void rowsWithTheSameKeyStayInTheOrderOfAddition() {
+        EnrollmentTable table = table("5:30:active 6:10:active 7:30:inactive 8:20:active 9:10:completed");
+
+        assertThat(table.rowsSortedBy(true)).containsExactly(1, 4, 3, 0, 2);
+    }
+
+    @Test
+    public void addOrUpdateChangesStateOfTheSameEnrollment() {
+        EnrollmentTable table = table("1:10:active 2:20:active");
+        EnrollmentTable copy = table.copy();
+
+        copy.addOrUpdate(1, 10, 100, "inactive");
+        copy.addOrUpdate(3, 30, 100, "invited");
+
+        assertThat(copy.size()).isEqualTo(3);
+        assertThat(copy.currentUserIds()).containsExactly("20", "30");
+        assertThat(copy.containsUser(30)).isTrue();
+        // the original table is not changed
+        assertThat(table.currentUserIds()).containsExactly("10", "20");
+        assertThat(table.containsUser(30)).isFalse();
+    }
+
+    @Test
+    public void tableGrowsOverInitialCapacity() {
+        EnrollmentTable table = new EnrollmentTable();
+        for (int i = 0; i < 100; i++) {
+            table.add(i, 1000 - i, 100, i % 2 == 0 ? "active" : "completed");
+        }
+
+        assertThat(table.size()).isEqualTo(100);
+        assertThat(table.currentUserIds()).hasSize(50);
+        assertThat(table.copy().currentCourseIds()).hasSize(50).containsOnly("100");
+    }
+
+    @DataProvider
+    public Object[][] sortedIds() {
+        return new Object[][] {
+                { List.of(), ids() },
+                { List.of("7"), ids(7) },
+                { List.of("3", "1", "2"), ids(1, 2, 3) },
+                { List.of("3", "1", "3", "1", "2"), ids(1, 2, 3) },
+                { List.of(5, "5", 4), ids(4, 5) },
+                { List.of("-1", "0"), ids(-1, 0) },
+        };
+    }
+
+    @Test(dataProvider = "sortedIds")
+    public void idsAreSortedWithoutDuplicates(List<?> values, int[] expected) {
+        assertThat(EnrollmentDiff.sortedIds(values)).containsExactly(expected);
+    }
+
+    @DataProvider
+    public Object[][] invalidIds() {
+        return new Object[][] { { "abc" }, { "" }, { "1.5" }, { "12345678901" } };
+    }
+
+    @Test(dataProvider = "invalidIds")
+    public void nonNumericIdIsRejected(String value) {
+        assertThatThrownBy(() -> EnrollmentDiff.sortedIds(List.of("1", value)))
+                .isInstanceOf(InvalidAttributeValueException.class)
+                .hasMessageContaining("'" + value + "'");
+    }
+
+    private static int[] ids(int... ids) {
+        return ids;
+    }
+
+    private static EnrollmentTable table(String enrollments) {
+        EnrollmentTable table = new EnrollmentTable();
+        for (String enrollment : enrollments.split(" ")) {
+            if (!enrollment.isEmpty()) {
+                String[] parts = enrollment.split(":");
+                table.add(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), 100, parts[2]);
+            }
+        }
+        return table;
+    }
+
+    private static int[] enrollmentIds(EnrollmentTable table, int[] rows) {
+        return Arrays.stream(rows).map(table::enrollmentId).toArray();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import com.evolveum.polygon.connector.canvas.CanvasConnector.ListingWindow;
+import com.evolveum.polygon.connector.canvas.CanvasConnector.Pagination;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class PaginationTest {
+
+    @Test
+    public void noPagingIsFullListing() {
+        assertThat(Pagination.from(null).isFullListing()).isTrue();
+        assertThat(Pagination.from(new OperationOptionsBuilder().build()).isFullListing()).isTrue();
+        assertThat(Pagination.from(new OperationOptionsBuilder().setPageSize(0).build()).isFullListing()).isTrue();
+        assertThat(Pagination.DEFAULT.pageBudget()).isEqualTo(Integer.MAX_VALUE);
+        // not only the default instance, e.g. a copy with another page size
+        assertThat(new Pagination("1", 50, 0, Pagination.NO_LIMIT, false).isFullListing()).isTrue();
+        assertThat(new Pagination("1", 100, 0, Pagination.NO_LIMIT, true).isFullListing()).isFalse();
+        assertThat(new Pagination("1", 100, 3, Pagination.NO_LIMIT, false).isFullListing()).isFalse();
+    }
+
+    @DataProvider
+    public Object[][] offsets() {
+        return new Object[][] {
+                // offset (1-based), page size, expected page, skip
+                { 1, 10, "1", 0 },
+                { 10, 10, "1", 9 },
+                { 11, 10, "2", 0 },
+                { 25, 10, "3", 4 },
+                { 3, 1, "3", 0 },
+        };
+    }
+
+    @Test(dataProvider = "offsets")
+    public void offsetIsConvertedToPageAndSkip(int offset, int pageSize, String page, int skip) {
+        Pagination pagination = Pagination.from(options(pageSize).setPagedResultsOffset(offset).build());
+
+        assertThat(pagination).isEqualTo(new Pagination(page, pageSize, skip, pageSize, false));
+        assertThat(pagination.isFullListing()).isFalse();
+        assertThat(pagination.cookiePaging()).isFalse();
+    }
+
+    @Test
+    public void offsetTakesPrecedenceOverCookie() {
+        Pagination pagination = Pagination.from(
+                options(10).setPagedResultsOffset(21).setPagedResultsCookie("bookmark:abc").build());
+
+        assertThat(pagination).isEqualTo(new Pagination("3", 10, 0, 10, false));
+    }
+
+    @Test
+    public void firstPageOfCookiePaging() {
+        Pagination pagination = Pagination.from(options(10).build());
+
+        assertThat(pagination).isEqualTo(new Pagination("1", 10, 0, 10, true));
+        assertThat(Pagination.from(options(10).setPagedResultsOffset(0).build()).cookiePaging()).isTrue();
+    }
+
+    @DataProvider
+    public Object[][] cookies() {
+        return new Object[][] {
+                // cookie, expected page, skip
+                { "2", "2", 0 },
+                { "2|7", "2", 7 },
+                { "bookmark:WyJhYmMiLDEyM10", "bookmark:WyJhYmMiLDEyM10", 0 },
+                { "bookmark:WyJhYmMiLDEyM10|3", "bookmark:WyJhYmMiLDEyM10", 3 },
+                { "first_page-x", "first_page-x", 0 },
+        };
+    }
+
+    @Test(dataProvider = "cookies")
+    public void cookieIsParsedToPageAndSkip(String cookie, String page, int skip) {
+        Pagination pagination = Pagination.from(options(10).setPagedResultsCookie(cookie).build());
+
+        assertThat(pagination).isEqualTo(new Pagination(page, 10, skip, 10, true));
+        assertThat(Pagination.cookie(page, skip)).isEqualTo(cookie);
+    }
+
+    @DataProvider
+    public Object[][] invalidCookies() {
+        return new Object[][] { { "" }, { "2|" }, { "|3" }, { "2|x" }, { "2|3|4" }, { "a b" }, { "page=2" } };
+    }
+
+    @Test(dataProvider = "invalidCookies")
+    public void invalidCookieIsRejected(String cookie) {
+        assertThat(Pagination.COOKIE_PATTERN.matcher(cookie).matches()).isFalse();
+        assertThatThrownBy(() -> Pagination.from(options(10).setPagedResultsCookie(cookie).build()))
+                .isInstanceOf(ConnectorException.class)
+                .hasMessageContaining(cookie);
+    }
+
+    @Test
+    public void pageBudgetCoversSkippedObjects() {
+        assertThat(new Pagination("1", 10, 0, 10, true).pageBudget()).isEqualTo(1);
+        assertThat(new Pagination("1", 10, 1, 10, true).pageBudget()).isEqualTo(2);
+        assertThat(new Pagination("1", 10, 9, 1, false).pageBudget()).isEqualTo(1);
+    }
+
+    @Test
+    public void cookieContinuesWithNextPageWhenThePageWasUsed() {
+        assertThat(windowAfter(10, 0, 10).continuationCookie(response("1", "bookmark:next", "10"), 10))
+                .isEqualTo("bookmark:next");
+    }
+
+    @Test
+    public void cookieSkipsUsedObjectsOfPartlyUsedPage() {
+        assertThat(windowAfter(10, 0, 4).continuationCookie(response("bookmark:a", "bookmark:b", "10"), 10))
+                .isEqualTo("bookmark:a|4");
+        // skipped objects of the page are counted as well
+        assertThat(windowAfter(3, 2, 5).continuationCookie(response("2", "3", "10"), 10)).isEqualTo("2|5");
+    }
+
+    @Test
+    public void cookieIsNullWhenTheLastPageWasUsed() {
+        // the last page has no next link, so its page size is not known from the response
+        assertThat(windowAfter(10, 0, 10).continuationCookie(response("5", null, null), 10)).isNull();
+    }
+
+    @Test
+    public void cookieSkipsUsedObjectsOfPartlyUsedLastPage() {
+        assertThat(windowAfter(3, 0, 3).continuationCookie(response("5", null, null), 10)).isEqualTo("5|3");
+    }
+
+    private static OperationOptionsBuilder options(int pageSize) {
+        return new OperationOptionsBuilder().setPageSize(pageSize);
+    }
+
+    /** Window after the listed objects of one page were passed to it, until its limit was reached. */
+    private static ListingWindow windowAfter(int limit, int skip, int listedObjects) {
+        ListingWindow window = new ListingWindow(skip, limit);
+        for (int i = 0; i < listedObjects; i++) {
+            window.take();
+        }
+        return window;
+    }
+
+    private static CanvasResponse response(String page, String nextPage, String pageSize) {
+        CanvasResponse response = new CanvasResponse(null);
+        response.page = page;
+        response.nextPage = nextPage;
+        response.pageSize = pageSize;
+        return response;
+    }
+}
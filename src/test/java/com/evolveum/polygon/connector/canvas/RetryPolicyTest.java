@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2024 Evolveum
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evolveum.polygon.connector.canvas;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.testng.annotations.Test;
+
+public class RetryPolicyTest {
+
+    private final CanvasClient.RetryPolicy policy = new CanvasClient.RetryPolicy(5, 1000, 30000);
+
+    @Test
+    public void delayIsBetweenHalfAndFullOfExponentialDelay() {
+        for (int i = 0; i < 1000; i++) {
+            assertThat(policy.delayMillis(0, null)).isBetween(500L, 1000L);
+            assertThat(policy.delayMillis(1, null)).isBetween(1000L, 2000L);
+            assertThat(policy.delayMillis(3, null)).isBetween(4000L, 8000L);
+        }
+    }
+
+    @Test
+    public void delayIsCappedByMaxDelay() {
+        for (int i = 0; i < 1000; i++) {
+            assertThat(policy.delayMillis(5, null)).isBetween(15000L, 30000L);
+            // shift is limited, high attempt must not overflow
+            assertThat(policy.delayMillis(100, null)).isBetween(15000L, 30000L);
+        }
+    }
+
+    @Test
+    public void retryAfterIsUsedInsteadOfBackoff() {
+        assertThat(policy.delayMillis(0, 7L)).isEqualTo(7000);
+        assertThat(policy.delayMillis(4, 0L)).isZero();
+    }
+
+    @Test
+    public void retryAfterIsCappedByMaxDelay() {
+        assertThat(policy.delayMillis(0, 86400L)).isEqualTo(30000);
+        assertThat(policy.delayMillis(0, Long.MAX_VALUE)).isEqualTo(30000);
+    }
+
+    @Test
+    public void negativeRetryAfterMeansNoDelay() {
+        assertThat(policy.delayMillis(0, -5L)).isZero();
+    }
+}